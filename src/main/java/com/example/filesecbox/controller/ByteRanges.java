@@ -0,0 +1,45 @@
+package com.example.filesecbox.controller;
+
+/**
+ * 单个字节区间的 Range / If-Range 判定。
+ */
+final class ByteRanges {
+
+    private ByteRanges() {
+    }
+
+    /**
+     * 按请求头决定响应区间：返回 null 表示发送完整内容 (无 Range、If-Range 与 ETag 不一致或区间无法解析)，
+     * 空数组表示区间不可满足 (416)，否则为闭区间 [start, end]。
+     */
+    static long[] resolve(String range, String ifRange, String etag, long length) {
+        if (range == null || (ifRange != null && !ifRange.equals(etag))) return null;
+        return parse(range, length);
+    }
+
+    /**
+     * 解析 "bytes=a-b" / "bytes=a-" / "bytes=-n"。无法解析或多区间时返回 null (按完整内容处理)，区间不可满足时返回空数组。
+     */
+    static long[] parse(String header, long length) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') != -1) return null;
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) return null;
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || length == 0) return new long[0];
+                return new long[]{Math.max(0, length - suffix), length - 1};
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+            if (start >= length) return new long[0];
+            if (start > end) return null;
+            return new long[]{start, Math.min(end, length - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
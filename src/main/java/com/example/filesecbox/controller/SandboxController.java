@@ -1,20 +1,46 @@
 package com.example.filesecbox.controller;
 
 import com.example.filesecbox.model.*;
+import com.example.filesecbox.service.ExecutionJobService;
+import com.example.filesecbox.service.ExecutionRejectedException;
+import com.example.filesecbox.service.ProcessSupervisor;
 import com.example.filesecbox.service.SandboxService;
+import com.example.filesecbox.service.SkillArchiveCache;
+import com.example.filesecbox.service.StorageService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 @RestController
 @RequestMapping("/v1")
 public class SandboxController {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SandboxController.class);
+    private static final int MAX_TAIL_LINES = 10000;
 
     @Autowired
     private SandboxService sandboxService;
 
+    @Autowired
+    private StorageService storageService;
+
+    @Autowired
+    private ProcessSupervisor processSupervisor;
+
+    @Autowired
+    private ExecutionJobService executionJobService;
+
     // --- 1. 技能管理 ---
 
     @PostMapping("/skills/{userId}/{agentId}/upload")
@@ -92,13 +118,22 @@ public class SandboxController {
             @PathVariable String userId,
             @PathVariable String agentId,
             @RequestParam("name") String name,
+            jakarta.servlet.http.HttpServletRequest request,
             jakarta.servlet.http.HttpServletResponse response) {
         log.info("API CALL: downloadSkill, userId: {}, agentId: {}, skillName: {}", userId, agentId, name);
         try {
+            Path archive = sandboxService.getSkillArchive(userId, agentId, name);
+            String etag = "\"" + SkillArchiveCache.digestOf(archive) + "\"";
+            if (StorageService.etagMatches(request.getHeader("If-None-Match"), etag)) {
+                response.setHeader("ETag", etag);
+                response.setStatus(HttpStatus.NOT_MODIFIED.value());
+                return;
+            }
             response.setContentType("application/zip");
             String encodedFileName = java.net.URLEncoder.encode(name + ".zip", "UTF-8").replaceAll("\\+", "%20");
             response.setHeader("Content-Disposition", "attachment; filename=\"" + encodedFileName + "\"; filename*=UTF-8''" + encodedFileName);
-            sandboxService.downloadSkill(userId, agentId, name, response.getOutputStream());
+            // 缓存包内容不可变，可交由容器 sendfile 发送
+            sendFile(archive, etag, true, request, response);
         } catch (Exception e) {
             log.error("API ERROR: downloadSkill", e);
             try {
@@ -156,16 +191,117 @@ public class SandboxController {
             @PathVariable String agentId,
             @RequestParam("path") String path,
             @RequestParam(value = "offset", required = false) Integer offset,
-            @RequestParam(value = "limit", required = false) Integer limit) {
-        log.info("API CALL: getContent, userId: {}, agentId: {}, path: {}, offset: {}, limit: {}", userId, agentId, path, offset, limit);
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "fields", required = false) String fields,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        log.info("API CALL: getContent, userId: {}, agentId: {}, path: {}, offset: {}, limit: {}, fields: {}", userId, agentId, path, offset, limit, fields);
         try {
-            return ResponseEntity.ok(ApiResponse.success(sandboxService.getContent(userId, agentId, path, offset, limit)));
+            FileContentResult result = sandboxService.getContent(userId, agentId, path, offset, limit, fields, ifNoneMatch);
+            if (result.isNotModified()) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(result.getEtag()).build();
+            }
+            return ResponseEntity.ok().eTag(result.getEtag()).body(ApiResponse.success(result));
         } catch (Exception e) {
             log.error("API ERROR: getContent", e);
             return ResponseEntity.ok(ApiResponse.error(e.getMessage()));
         }
     }
 
+    @GetMapping("/{userId}/{agentId}/content/stream")
+    public void streamContent(
+            @PathVariable String userId,
+            @PathVariable String agentId,
+            @RequestParam("path") String path,
+            @RequestParam(value = "offset", required = false) Integer offset,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "format", defaultValue = "text") String format,
+            jakarta.servlet.http.HttpServletRequest request,
+            jakarta.servlet.http.HttpServletResponse response) {
+        log.info("API CALL: streamContent, userId: {}, agentId: {}, path: {}, offset: {}, limit: {}, format: {}", userId, agentId, path, offset, limit, format);
+        try (StorageService.FileSnapshot snapshot = sandboxService.openFileSnapshot(userId, agentId, path)) {
+            boolean ndjson = "ndjson".equalsIgnoreCase(format);
+            String etag = "\"" + snapshot.getEtag().replace("\"", "") + "-" + offset + "-" + limit + "-" + (ndjson ? "ndjson" : "text") + "\"";
+            response.setHeader("ETag", etag);
+            if (StorageService.etagMatches(request.getHeader("If-None-Match"), etag)) {
+                response.setStatus(HttpStatus.NOT_MODIFIED.value());
+                return;
+            }
+            response.setContentType(ndjson ? "application/x-ndjson;charset=UTF-8" : "text/plain;charset=UTF-8");
+            sandboxService.streamContent(snapshot, offset, limit, ndjson, response.getOutputStream());
+        } catch (Exception e) {
+            log.error("API ERROR: streamContent", e);
+            try {
+                response.sendError(500, e.getMessage());
+            } catch (Exception ignored) {}
+        }
+    }
+
+    @GetMapping("/{userId}/{agentId}/tail")
+    public ResponseEntity<ApiResponse<?>> tail(
+            @PathVariable String userId,
+            @PathVariable String agentId,
+            @RequestParam("path") String path,
+            @RequestParam(value = "lines", defaultValue = "100") int lines) {
+        log.info("API CALL: tail, userId: {}, agentId: {}, path: {}, lines: {}", userId, agentId, path, lines);
+        try {
+            if (lines > MAX_TAIL_LINES) {
+                throw new RuntimeException("Validation Error: lines must not exceed " + MAX_TAIL_LINES);
+            }
+            return ResponseEntity.ok(ApiResponse.success(sandboxService.tail(userId, agentId, path, lines)));
+        } catch (Exception e) {
+            log.error("API ERROR: tail", e);
+            return ResponseEntity.ok(ApiResponse.error(e.getMessage()));
+        }
+    }
+
+    @GetMapping(value = "/{userId}/{agentId}/tail/follow", produces = "text/event-stream")
+    public SseEmitter follow(
+            @PathVariable String userId,
+            @PathVariable String agentId,
+            @RequestParam("path") String path,
+            @RequestParam(value = "offset", required = false) Long offset) {
+        log.info("API CALL: follow, userId: {}, agentId: {}, path: {}, offset: {}", userId, agentId, path, offset);
+        try {
+            return sandboxService.follow(userId, agentId, path, offset);
+        } catch (Exception e) {
+            log.error("API ERROR: follow", e);
+            SseEmitter emitter = new SseEmitter();
+            try {
+                emitter.send(SseEmitter.event().name("error").data(ApiResponse.error(e.getMessage())));
+            } catch (Exception ignored) {}
+            emitter.complete();
+            return emitter;
+        }
+    }
+
+    @GetMapping("/{userId}/{agentId}/raw")
+    public void downloadFile(
+            @PathVariable String userId,
+            @PathVariable String agentId,
+            @RequestParam("path") String path,
+            jakarta.servlet.http.HttpServletRequest request,
+            jakarta.servlet.http.HttpServletResponse response) {
+        log.info("API CALL: downloadFile, userId: {}, agentId: {}, path: {}", userId, agentId, path);
+        try (StorageService.FileSnapshot snapshot = sandboxService.openFileSnapshot(userId, agentId, path)) {
+            if (StorageService.etagMatches(request.getHeader("If-None-Match"), snapshot.getEtag())) {
+                response.setHeader("ETag", snapshot.getEtag());
+                response.setStatus(HttpStatus.NOT_MODIFIED.value());
+                return;
+            }
+            response.setContentType("application/octet-stream");
+            String fileName = path.substring(path.lastIndexOf('/') + 1);
+            String encodedFileName = java.net.URLEncoder.encode(fileName, "UTF-8").replaceAll("\\+", "%20");
+            response.setHeader("Content-Disposition", "attachment; filename=\"" + encodedFileName + "\"; filename*=UTF-8''" + encodedFileName);
+            // 快照在返回后即删除，不能交给容器异步 sendfile
+            sendFile(snapshot.getPath(), snapshot.getEtag(), false, request, response);
+        } catch (Exception e) {
+            log.error("API ERROR: downloadFile", e);
+            try {
+                response.sendError(500, e.getMessage());
+            } catch (Exception ignored) {}
+        }
+    }
+
     @PostMapping("/{userId}/{agentId}/write")
     public ResponseEntity<ApiResponse<?>> write(
             @PathVariable String userId,
@@ -192,6 +328,21 @@ public class SandboxController {
         }
     }
 
+    @PostMapping("/{userId}/{agentId}/batch")
+    public ResponseEntity<ApiResponse<?>> batch(
+            @PathVariable String userId,
+            @PathVariable String agentId,
+            @RequestBody BatchRequest request) {
+        log.info("API CALL: batch, userId: {}, agentId: {}, operations: {}", userId, agentId,
+                request.getOperations() != null ? request.getOperations().size() : 0);
+        try {
+            return ResponseEntity.ok(ApiResponse.success(sandboxService.batch(userId, agentId, request)));
+        } catch (Exception e) {
+            log.error("API ERROR: batch", e);
+            return ResponseEntity.ok(ApiResponse.error(e.getMessage()));
+        }
+    }
+
     @PostMapping("/{userId}/{agentId}/execute")
     public ResponseEntity<ApiResponse<?>> execute(
             @PathVariable String userId,
@@ -200,12 +351,82 @@ public class SandboxController {
         try {
             ExecutionResult result = sandboxService.execute(userId, agentId, request);
             return ResponseEntity.ok(ApiResponse.success(result));
+        } catch (ExecutionRejectedException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                    .body(ApiResponse.error(e.getMessage()));
         } catch (Exception e) {
             log.error("API ERROR: execute", e);
             return ResponseEntity.ok(ApiResponse.error(e.getMessage()));
         }
     }
 
+    @PostMapping("/{userId}/{agentId}/jobs")
+    public ResponseEntity<ApiResponse<?>> submitJob(
+            @PathVariable String userId,
+            @PathVariable String agentId,
+            @RequestBody CommandRequest request) {
+        log.info("API CALL: submitJob, userId: {}, agentId: {}", userId, agentId);
+        try {
+            return ResponseEntity.ok(ApiResponse.success(sandboxService.submitJob(userId, agentId, request)));
+        } catch (ExecutionRejectedException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                    .body(ApiResponse.error(e.getMessage()));
+        } catch (Exception e) {
+            log.error("API ERROR: submitJob", e);
+            return ResponseEntity.ok(ApiResponse.error(e.getMessage()));
+        }
+    }
+
+    @GetMapping("/{userId}/{agentId}/jobs/{jobId}")
+    public ResponseEntity<ApiResponse<?>> getJob(
+            @PathVariable String userId,
+            @PathVariable String agentId,
+            @PathVariable String jobId) {
+        log.info("API CALL: getJob, userId: {}, agentId: {}, jobId: {}", userId, agentId, jobId);
+        try {
+            return ResponseEntity.ok(ApiResponse.success(executionJobService.status(userId, agentId, jobId)));
+        } catch (Exception e) {
+            log.error("API ERROR: getJob", e);
+            return ResponseEntity.ok(ApiResponse.error(e.getMessage()));
+        }
+    }
+
+    /**
+     * 增量读取任务输出：客户端以上次返回的 offset 继续轮询，eof 为 true 时输出已完整。
+     */
+    @GetMapping("/{userId}/{agentId}/jobs/{jobId}/output")
+    public ResponseEntity<ApiResponse<?>> getJobOutput(
+            @PathVariable String userId,
+            @PathVariable String agentId,
+            @PathVariable String jobId,
+            @RequestParam(value = "stream", defaultValue = "stdout") String stream,
+            @RequestParam(value = "offset", defaultValue = "0") long offset,
+            @RequestParam(value = "limit", defaultValue = "65536") int limit) {
+        log.info("API CALL: getJobOutput, userId: {}, agentId: {}, jobId: {}, stream: {}, offset: {}", userId, agentId, jobId, stream, offset);
+        try {
+            return ResponseEntity.ok(ApiResponse.success(executionJobService.output(userId, agentId, jobId, stream, offset, limit)));
+        } catch (Exception e) {
+            log.error("API ERROR: getJobOutput", e);
+            return ResponseEntity.ok(ApiResponse.error(e.getMessage()));
+        }
+    }
+
+    @DeleteMapping("/{userId}/{agentId}/jobs/{jobId}")
+    public ResponseEntity<ApiResponse<?>> cancelJob(
+            @PathVariable String userId,
+            @PathVariable String agentId,
+            @PathVariable String jobId) {
+        log.info("API CALL: cancelJob, userId: {}, agentId: {}, jobId: {}", userId, agentId, jobId);
+        try {
+            return ResponseEntity.ok(ApiResponse.success(executionJobService.cancel(userId, agentId, jobId)));
+        } catch (Exception e) {
+            log.error("API ERROR: cancelJob", e);
+            return ResponseEntity.ok(ApiResponse.error(e.getMessage()));
+        }
+    }
+
     @DeleteMapping("/{userId}/{agentId}/delete")
     public ResponseEntity<ApiResponse<?>> deleteFile(
             @PathVariable String userId,
@@ -219,4 +440,65 @@ public class SandboxController {
             return ResponseEntity.ok(ApiResponse.error(e.getMessage()));
         }
     }
+
+    // --- 3. 运行状态 ---
+
+    @GetMapping("/stats/locks")
+    public ResponseEntity<ApiResponse<?>> getLockStats() {
+        return ResponseEntity.ok(ApiResponse.success(storageService.getLockStats()));
+    }
+
+    @GetMapping("/stats/workspaces")
+    public ResponseEntity<ApiResponse<?>> getWorkspaceStats() {
+        return ResponseEntity.ok(ApiResponse.success(sandboxService.getWorkspaceStats()));
+    }
+
+    @GetMapping("/stats/executions")
+    public ResponseEntity<ApiResponse<?>> getExecutionStats() {
+        return ResponseEntity.ok(ApiResponse.success(processSupervisor.getStats()));
+    }
+
+    /**
+     * 输出文件内容，支持单个字节区间的 Range 请求 (If-Range 与 ETag 不一致时返回完整内容)。
+     * allowSendfile 且容器支持时交由 Tomcat 零拷贝发送，否则通过 FileChannel.transferTo 写出。
+     */
+    private void sendFile(Path file, String etag, boolean allowSendfile, jakarta.servlet.http.HttpServletRequest request,
+                          jakarta.servlet.http.HttpServletResponse response) throws IOException {
+        long length = Files.size(file);
+        long start = 0;
+        long end = length - 1;
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+
+        long[] bounds = ByteRanges.resolve(request.getHeader("Range"), request.getHeader("If-Range"), etag, length);
+        if (bounds != null && bounds.length == 0) {
+            response.setHeader("Content-Range", "bytes */" + length);
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            return;
+        }
+        if (bounds != null) {
+            start = bounds[0];
+            end = bounds[1];
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+        long count = end - start + 1;
+        response.setContentLengthLong(count);
+        if (count <= 0) return;
+
+        if (allowSendfile && Boolean.TRUE.equals(request.getAttribute("org.apache.tomcat.sendfile.support"))) {
+            request.setAttribute("org.apache.tomcat.sendfile.filename", file.toAbsolutePath().toString());
+            request.setAttribute("org.apache.tomcat.sendfile.start", start);
+            request.setAttribute("org.apache.tomcat.sendfile.end", end + 1);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            long limit = end + 1;
+            while (position < limit) {
+                position += channel.transferTo(position, limit - position, out);
+            }
+        }
+    }
 }
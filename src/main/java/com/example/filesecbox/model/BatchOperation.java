@@ -0,0 +1,23 @@
+package com.example.filesecbox.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class BatchOperation {
+    // write 或 edit，其余字段含义与 WriteRequest / EditRequest 相同
+    private String op;
+    @JsonProperty("file_path")
+    private String filePath;
+    private String content;
+    @JsonProperty("old_string")
+    private String oldString;
+    @JsonProperty("new_string")
+    private String newString;
+    @JsonProperty("expected_replacements")
+    private int expectedReplacements;
+}
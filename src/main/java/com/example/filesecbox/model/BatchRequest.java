@@ -0,0 +1,14 @@
+package com.example.filesecbox.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class BatchRequest {
+    private List<BatchOperation> operations;
+}
@@ -1,5 +1,6 @@
 package com.example.filesecbox.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -11,5 +12,21 @@ public class ExecutionResult {
     private String stdout;
     private String stderror;
     private int exitCode;
-}
 
+    // 输出的原始字节数；超过保留上限时 stdout/stderror 只包含开头与末尾两段
+    private long stdoutBytes;
+    private long stderrBytes;
+    private boolean stdoutTruncated;
+    private boolean stderrTruncated;
+    // 被截断时完整输出在工作区中的逻辑路径，可通过 content 接口分页读取
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String stdoutPath;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String stderrPath;
+
+    public ExecutionResult(String stdout, String stderror, int exitCode) {
+        this.stdout = stdout;
+        this.stderror = stderror;
+        this.exitCode = exitCode;
+    }
+}
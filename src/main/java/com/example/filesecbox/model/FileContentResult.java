@@ -1,5 +1,7 @@
 package com.example.filesecbox.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -10,7 +12,21 @@ import java.util.List;
 @AllArgsConstructor
 @NoArgsConstructor
 public class FileContentResult {
+    // 按投影参数只返回其中之一时，另一字段不输出
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     private String content;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     private List<String> lines;
+
+    // 以下字段仅用于 HTTP 缓存协商，不输出到响应体
+    @JsonIgnore
+    private String etag;
+    @JsonIgnore
+    private boolean notModified;
+
+    public FileContentResult(String content, List<String> lines) {
+        this.content = content;
+        this.lines = lines;
+    }
 }
 
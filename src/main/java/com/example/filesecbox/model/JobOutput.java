@@ -0,0 +1,16 @@
+package com.example.filesecbox.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class JobOutput {
+    private String data;
+    // 下一次读取的字节偏移
+    private long offset;
+    // 任务已结束且输出已读完
+    private boolean eof;
+}
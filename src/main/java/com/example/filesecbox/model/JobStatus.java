@@ -0,0 +1,22 @@
+package com.example.filesecbox.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class JobStatus {
+    private String jobId;
+    private String command;
+    private String status; // QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED, TIMEOUT, REJECTED
+    private String createdTime;
+    private String startedTime;
+    private String finishedTime;
+    // 仅在任务结束后返回
+    private ExecutionResult result;
+    private String error;
+}
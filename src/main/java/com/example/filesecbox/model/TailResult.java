@@ -0,0 +1,16 @@
+package com.example.filesecbox.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class TailResult {
+    private List<String> lines;
+    // 读取时的文件末尾字节偏移，可作为 follow 的起始位置
+    private long offset;
+}
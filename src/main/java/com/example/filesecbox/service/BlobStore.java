@@ -0,0 +1,351 @@
+package com.example.filesecbox.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * 内容寻址存储：所有基线文件按 SHA-256 存放在 {productRoot}/.blobs 下，基线与工作区中的文件均为 blob 的硬链接。
+ * 技能目录由 manifest (相对路径 -> 哈希) 描述，同步时只对哈希不同的文件做链接替换。
+ * 硬链接共享 inode，权限位也随之共享，因此 POSIX 文件系统上的键为 "哈希-八进制权限"，内容相同而权限不同的文件各占一个 blob。
+ */
+@Service
+public class BlobStore {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(BlobStore.class);
+
+    private static final String BLOBS_DIR = ".blobs";
+    // manifest 中目录条目以 "/" 结尾，值固定为该标记
+    private static final String DIR_MARKER = "dir";
+    private static final long GC_GRACE_MILLIS = 3600 * 1000L;
+    private static final int LOCK_STRIPES = 64;
+
+    @Value("${app.product.root.win:D:/webIde/product}")
+    private String productRootWin;
+
+    @Value("${app.product.root.linux:/webIde/product}")
+    private String productRootLinux;
+
+    private Path blobRoot;
+    private Path tmpDir;
+    // 复用 (ingest 命中、链接、复制) 持读锁，回收持写锁，保证回收不会删掉正被链接的 blob
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[LOCK_STRIPES];
+    // 最近一次复用时间：ingest 与随后的 linkTo 是两次调用，宽限期内被复用过的 blob 不回收
+    private final Map<String, Long> lastReuse = new ConcurrentHashMap<>();
+
+    {
+        for (int i = 0; i < LOCK_STRIPES; i++) stripes[i] = new ReentrantReadWriteLock();
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        boolean isWin = System.getProperty("os.name").toLowerCase().contains("win");
+        Path productRoot = Paths.get(isWin ? productRootWin : productRootLinux).toAbsolutePath().normalize();
+        this.blobRoot = productRoot.resolve(BLOBS_DIR);
+        this.tmpDir = blobRoot.resolve("tmp");
+        Files.createDirectories(tmpDir);
+    }
+
+    public Path blobPath(String hash) {
+        return blobRoot.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * 将文件纳入存储，返回其键 (见 key)。blob 已存在时不重复写入。
+     * move=true 时直接移动源文件（适用于临时解压目录），否则复制。
+     */
+    public String ingest(Path file, boolean move) throws IOException {
+        String hash = key(file);
+        Path blob = blobPath(hash);
+        Lock lock = stripe(hash).readLock();
+        lock.lock();
+        try {
+            if (Files.exists(blob)) {
+                lastReuse.put(hash, System.currentTimeMillis());
+                return hash;
+            }
+        } finally {
+            lock.unlock();
+        }
+        Files.createDirectories(blob.getParent());
+        Path tmp = tmpDir.resolve(hash + "-" + UUID.randomUUID());
+        try {
+            if (move) {
+                Files.move(file, tmp);
+            } else {
+                Files.copy(file, tmp, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            Files.setLastModifiedTime(tmp, FileTime.fromMillis(System.currentTimeMillis()));
+            Files.move(tmp, blob, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // 并发写入同一内容，保留先到者
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return hash;
+    }
+
+    /**
+     * 生成目录的 manifest。hint 为上一次已知的 manifest：若文件仍是对应 blob 的硬链接则直接复用哈希，不再读取内容。
+     * ingest=true 时新内容会写入存储，并将原文件替换为 blob 的硬链接以去重。
+     */
+    public Map<String, String> snapshot(Path dir, Map<String, String> hint, boolean ingest) throws IOException {
+        return snapshot(dir, hint, ingest, true);
+    }
+
+    /**
+     * relink=false 时只写入存储，原文件保持独立 inode (目录中可能有正在运行的命令)。
+     */
+    public Map<String, String> snapshot(Path dir, Map<String, String> hint, boolean ingest, boolean relink) throws IOException {
+        Map<String, String> manifest = new TreeMap<>();
+        if (!Files.isDirectory(dir)) return manifest;
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                if (!d.equals(dir)) {
+                    manifest.put(relative(dir, d) + "/", DIR_MARKER);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String rel = relative(dir, file);
+                if (!attrs.isRegularFile()) {
+                    log.warn("Skipping non-regular file in skill snapshot: {}", file);
+                    return FileVisitResult.CONTINUE;
+                }
+                String known = hint.get(rel);
+                if (known != null && !DIR_MARKER.equals(known) && isLinkOf(attrs, known)) {
+                    manifest.put(rel, known);
+                } else if (ingest) {
+                    String hash = ingest(file, false);
+                    if (relink) linkTo(hash, file);
+                    manifest.put(rel, hash);
+                } else {
+                    manifest.put(rel, key(file));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return manifest;
+    }
+
+    /**
+     * 将目录调整为 target 所描述的内容：只替换哈希不同的文件，删除多余条目。hint 用于快速判定当前文件的哈希。
+     */
+    public void checkout(Path dir, Map<String, String> hint, Map<String, String> target) throws IOException {
+        checkout(dir, hint, target, true);
+    }
+
+    /**
+     * link=false 时写入 blob 的独立副本而不是硬链接。
+     */
+    public void checkout(Path dir, Map<String, String> hint, Map<String, String> target, boolean link) throws IOException {
+        Files.createDirectories(dir);
+        Map<String, String> current = snapshot(dir, hint, false);
+
+        // 删除多余文件，再自深向浅删除多余目录
+        List<String> staleDirs = new ArrayList<>();
+        for (Map.Entry<String, String> e : current.entrySet()) {
+            if (target.containsKey(e.getKey())) continue;
+            if (e.getKey().endsWith("/")) staleDirs.add(e.getKey());
+            else Files.deleteIfExists(dir.resolve(e.getKey()));
+        }
+        staleDirs.sort(Comparator.reverseOrder());
+        for (String staleDir : staleDirs) {
+            Path p = dir.resolve(staleDir);
+            try (Stream<Path> entries = Files.list(p)) {
+                if (entries.findAny().isEmpty()) Files.delete(p);
+            }
+        }
+
+        for (Map.Entry<String, String> e : target.entrySet()) {
+            Path p = dir.resolve(e.getKey()).normalize();
+            if (!p.startsWith(dir)) {
+                throw new RuntimeException("Security Error: Manifest entry out of scope: " + e.getKey());
+            }
+            if (e.getKey().endsWith("/")) {
+                Files.createDirectories(p);
+            } else if (!e.getValue().equals(current.get(e.getKey()))) {
+                Files.createDirectories(p.getParent());
+                if (link) linkTo(e.getValue(), p);
+                else copyTo(e.getValue(), p);
+            }
+        }
+    }
+
+    /**
+     * 用 blob 的硬链接原子替换目标文件，跨文件系统时回退为复制。
+     */
+    public void linkTo(String hash, Path target) throws IOException {
+        Path blob = blobPath(hash);
+        Path tmp = target.resolveSibling(target.getFileName() + ".blob-" + UUID.randomUUID());
+        Lock lock = stripe(hash).readLock();
+        lock.lock();
+        try {
+            lastReuse.put(hash, System.currentTimeMillis());
+            try {
+                Files.createLink(tmp, blob);
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                Files.copy(blob, tmp, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            lock.unlock();
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * 用 blob 的独立副本原子替换目标文件。
+     */
+    public void copyTo(String hash, Path target) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".blob-" + UUID.randomUUID());
+        Lock lock = stripe(hash).readLock();
+        lock.lock();
+        try {
+            Files.copy(blobPath(hash), tmp, StandardCopyOption.COPY_ATTRIBUTES);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    public Map<String, String> loadManifest(Path file) throws IOException {
+        Map<String, String> manifest = new TreeMap<>();
+        if (Files.exists(file)) {
+            Properties props = new Properties();
+            try (InputStream is = Files.newInputStream(file)) {
+                props.load(is);
+            }
+            for (String key : props.stringPropertyNames()) {
+                manifest.put(key, props.getProperty(key));
+            }
+        }
+        return manifest;
+    }
+
+    public void saveManifest(Path file, Map<String, String> manifest) throws IOException {
+        Files.createDirectories(file.getParent());
+        Properties props = new Properties();
+        props.putAll(manifest);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp-" + UUID.randomUUID());
+        try {
+            try (OutputStream os = Files.newOutputStream(tmp)) {
+                props.store(os, "Skill Manifest");
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * blob 键：内容哈希，POSIX 文件系统上再附加权限位。
+     */
+    public String key(Path file) throws IOException {
+        String hash = hash(file);
+        Integer mode = mode(file);
+        return mode == null ? hash : hash + "-" + Integer.toOctalString(mode);
+    }
+
+    /**
+     * 文件的权限位 (不含文件类型)，非 POSIX 文件系统返回 null。
+     */
+    public static Integer mode(Path file) throws IOException {
+        if (!file.getFileSystem().supportedFileAttributeViews().contains("unix")) return null;
+        return ((Number) Files.getAttribute(file, "unix:mode", LinkOption.NOFOLLOW_LINKS)).intValue() & 07777;
+    }
+
+    public String hash(Path file) throws IOException {
+        MessageDigest md = sha256();
+        byte[] buf = new byte[65536];
+        try (InputStream is = Files.newInputStream(file)) {
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                md.update(buf, 0, n);
+            }
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    /**
+     * 回收不再被任何基线或工作区引用的 blob（硬链接计数为 1），新写入或宽限期内被复用过的 blob 保留。
+     * 判定与删除在该 blob 的写锁内完成，与并发的 ingest / linkTo / copyTo 互斥。
+     */
+    @Scheduled(cron = "${app.blob.gc.cron:0 30 3 * * ?}")
+    public void collectGarbage() {
+        if (!blobRoot.getFileSystem().supportedFileAttributeViews().contains("unix")) return;
+        long now = System.currentTimeMillis();
+        int[] removed = {0};
+        try (Stream<Path> stream = Files.walk(blobRoot, 2)) {
+            stream.filter(p -> !p.startsWith(tmpDir) && Files.isRegularFile(p)).forEach(p -> {
+                String hash = p.getFileName().toString();
+                Lock lock = stripe(hash).writeLock();
+                lock.lock();
+                try {
+                    Long reused = lastReuse.get(hash);
+                    if (reused != null && now - reused <= GC_GRACE_MILLIS) return;
+                    int nlink = ((Number) Files.getAttribute(p, "unix:nlink")).intValue();
+                    if (nlink <= 1 && now - Files.getLastModifiedTime(p).toMillis() > GC_GRACE_MILLIS) {
+                        Files.delete(p);
+                        removed[0]++;
+                    }
+                } catch (IOException e) {
+                    log.warn("Failed to inspect blob: {}", p, e);
+                } finally {
+                    lock.unlock();
+                }
+            });
+        } catch (IOException e) {
+            log.error("Error during blob garbage collection", e);
+        }
+        lastReuse.values().removeIf(t -> now - t > GC_GRACE_MILLIS);
+        log.info("Blob garbage collection finished, removed: {}", removed[0]);
+    }
+
+    private ReentrantReadWriteLock stripe(String hash) {
+        return stripes[Math.floorMod(hash.hashCode(), LOCK_STRIPES)];
+    }
+
+    private boolean isLinkOf(BasicFileAttributes attrs, String hash) {
+        Object fileKey = attrs.fileKey();
+        if (fileKey == null) return false;
+        try {
+            return fileKey.equals(Files.readAttributes(blobPath(hash), BasicFileAttributes.class).fileKey());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static String relative(Path root, Path p) {
+        return root.relativize(p).toString().replace('\\', '/');
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
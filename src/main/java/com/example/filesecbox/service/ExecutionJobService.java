@@ -0,0 +1,279 @@
+package com.example.filesecbox.service;
+
+import com.example.filesecbox.model.ExecutionResult;
+import com.example.filesecbox.model.JobOutput;
+import com.example.filesecbox.model.JobStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 异步命令执行：提交后立即返回任务 ID，进程在虚拟线程上排队、执行，输出持续写入任务文件，可按字节偏移增量读取。
+ * 任务状态保存在有界的内存注册表中，结束的任务在 TTL 到期后连同输出文件一起清除。
+ */
+@Service
+public class ExecutionJobService {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ExecutionJobService.class);
+
+    private static final String JOBS_DIR = "jobs";
+    private static final int MAX_OUTPUT_CHUNK = 1024 * 1024;
+
+    @Value("${app.exec.jobs.max:1000}")
+    private int maxJobs;
+
+    @Value("${app.exec.jobs.ttl-minutes:30}")
+    private long ttlMinutes;
+
+    @Autowired
+    private SkillExecutor skillExecutor;
+
+    @Autowired
+    private ProcessSupervisor processSupervisor;
+
+    private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * 登记并启动任务。注册表已满且没有可清除的已结束任务时拒绝提交。
+     * onFinish 在任务结束后 (无论成功与否) 执行，用于工作区整理。
+     */
+    public JobStatus submit(String userId, String agentId, String command, ProcessBuilder pb, IOAction onFinish) throws IOException {
+        if (jobs.size() >= maxJobs) {
+            evictExpired();
+            evictOldestFinished();
+            if (jobs.size() >= maxJobs) {
+                throw new ExecutionRejectedException("Server busy: Too many execution jobs.", processSupervisor.getRetryAfterSeconds());
+            }
+        }
+        String id = UUID.randomUUID().toString().replace("-", "");
+        Path dir = skillExecutor.scratchDir().resolve(JOBS_DIR);
+        Files.createDirectories(dir);
+        Job job = new Job(id, userId, agentId, command, dir.resolve(id + ".out"), dir.resolve(id + ".err"));
+        Files.createFile(job.stdout);
+        Files.createFile(job.stderr);
+        // 线程在登记前创建，登记后立即被取消时 job.thread 已可用
+        job.thread = Thread.ofVirtual().name("exec-job-" + id).unstarted(() -> runJob(job, pb, onFinish));
+        jobs.put(id, job);
+        job.thread.start();
+        return job.toStatus();
+    }
+
+    public JobStatus status(String userId, String agentId, String jobId) {
+        return find(userId, agentId, jobId).toStatus();
+    }
+
+    /**
+     * 从字节偏移 offset 起增量读取 stdout / stderr。跨越读取边界的多字节字符留到下一次读取，返回的 offset 为下次起点。
+     */
+    public JobOutput output(String userId, String agentId, String jobId, String stream, long offset, int limit) throws IOException {
+        Job job = find(userId, agentId, jobId);
+        Path file;
+        if (stream == null || "stdout".equals(stream)) {
+            file = job.stdout;
+        } else if ("stderr".equals(stream)) {
+            file = job.stderr;
+        } else {
+            throw new RuntimeException("Validation Error: stream must be 'stdout' or 'stderr'.");
+        }
+        boolean finished = job.isFinished();
+        if (!Files.exists(file)) {
+            return new JobOutput("", offset, finished);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = Math.max(0, Math.min(offset, size));
+            ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(Math.min(Math.max(limit, 1), MAX_OUTPUT_CHUNK), size - start));
+            while (bytes.hasRemaining() && channel.read(bytes, start + bytes.position()) > 0) {
+                // 读满为止
+            }
+            bytes.flip();
+            boolean endOfInput = finished && start + bytes.limit() >= size;
+            CharsetDecoder decoder = skillExecutor.outputCharset().newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer chars = CharBuffer.allocate(bytes.limit() + 1);
+            decoder.decode(bytes, chars, endOfInput);
+            if (endOfInput) decoder.flush(chars);
+            chars.flip();
+            long next = start + bytes.position();
+            return new JobOutput(chars.toString(), next, finished && next >= size);
+        }
+    }
+
+    /**
+     * 取消任务：排队中的任务不再启动，运行中的任务终止整个进程树。
+     */
+    public JobStatus cancel(String userId, String agentId, String jobId) {
+        Job job = find(userId, agentId, jobId);
+        job.lock.lock();
+        try {
+            if (!job.isFinished()) {
+                job.cancelRequested = true;
+                if (job.process != null) ProcessSupervisor.destroyTree(job.process);
+                job.thread.interrupt();
+            }
+        } finally {
+            job.lock.unlock();
+        }
+        return job.toStatus();
+    }
+
+    @Scheduled(fixedDelayString = "${app.exec.jobs.cleanup-interval-ms:60000}")
+    public void evictExpired() {
+        long cutoff = System.currentTimeMillis() - ttlMinutes * 60_000;
+        jobs.values().stream()
+                .filter(job -> job.isFinished() && job.finishedAt < cutoff)
+                .forEach(this::remove);
+    }
+
+    private void evictOldestFinished() {
+        jobs.values().stream()
+                .filter(Job::isFinished)
+                .min(Comparator.comparingLong(job -> job.finishedAt))
+                .ifPresent(this::remove);
+    }
+
+    private void remove(Job job) {
+        if (!jobs.remove(job.id, job)) return;
+        try {
+            Files.deleteIfExists(job.stdout);
+            Files.deleteIfExists(job.stderr);
+        } catch (IOException e) {
+            log.warn("Failed to delete output of job {}", job.id, e);
+        }
+    }
+
+    // permit 只用于在结束时归还执行名额
+    @SuppressWarnings("try")
+    private void runJob(Job job, ProcessBuilder pb, IOAction onFinish) {
+        String status;
+        try (ProcessSupervisor.Permit permit = processSupervisor.admit(job.agentId)) {
+            job.lock.lock();
+            try {
+                if (job.cancelRequested) throw new InterruptedException();
+                job.process = processSupervisor.start(pb, job.stdout, job.stderr);
+                job.startedAt = System.currentTimeMillis();
+                job.status = "RUNNING";
+            } finally {
+                job.lock.unlock();
+            }
+            int exitCode = processSupervisor.await(job.process, skillExecutor.getTimeoutSeconds());
+            job.result = skillExecutor.readResult(null, job.stdout, job.stderr, exitCode);
+            status = "SUCCEEDED";
+        } catch (ProcessSupervisor.StartFailedException e) {
+            job.result = new ExecutionResult("", "Failed to start process: " + e.getMessage(), 127);
+            status = "FAILED";
+        } catch (ExecutionRejectedException e) {
+            job.error = e.getMessage();
+            status = "REJECTED";
+        } catch (ProcessSupervisor.ExecutionTimeoutException e) {
+            job.error = e.getMessage();
+            status = "TIMEOUT";
+        } catch (Exception e) {
+            if (job.cancelRequested) {
+                job.error = "Cancelled by request.";
+                status = "CANCELLED";
+            } else {
+                log.error("Execution job {} failed", job.id, e);
+                job.error = e.getMessage();
+                status = "FAILED";
+            }
+        }
+        if (job.cancelRequested && !"CANCELLED".equals(status)) {
+            job.error = "Cancelled by request.";
+            status = "CANCELLED";
+        }
+        // 清除取消留下的中断标记，避免整理工作区时的通道 I/O 被中断
+        Thread.interrupted();
+        try {
+            onFinish.run();
+        } catch (Exception e) {
+            log.error("Post-execution step failed for job {}", job.id, e);
+        }
+        job.lock.lock();
+        try {
+            job.finishedAt = System.currentTimeMillis();
+            job.status = status;
+        } finally {
+            job.lock.unlock();
+        }
+    }
+
+    private Job find(String userId, String agentId, String jobId) {
+        Job job = jobs.get(jobId);
+        if (job == null || !job.userId.equals(userId) || !job.agentId.equals(agentId)) {
+            throw new RuntimeException("Job not found: " + jobId);
+        }
+        return job;
+    }
+
+    private static String formatTime(long millis) {
+        if (millis <= 0) return null;
+        return LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(millis), java.time.ZoneId.systemDefault())
+                .format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+    }
+
+    @FunctionalInterface
+    public interface IOAction {
+        void run() throws IOException;
+    }
+
+    private static final class Job {
+        private final String id;
+        private final String userId;
+        private final String agentId;
+        private final String command;
+        private final Path stdout;
+        private final Path stderr;
+        private final long createdAt = System.currentTimeMillis();
+        // 启动进程与终止进程树都是阻塞调用，用 ReentrantLock 而不是 synchronized，以免虚拟线程钉住载体线程
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile String status = "QUEUED";
+        private volatile long startedAt;
+        private volatile long finishedAt;
+        private volatile boolean cancelRequested;
+        private volatile Process process;
+        private volatile Thread thread;
+        private volatile ExecutionResult result;
+        private volatile String error;
+
+        Job(String id, String userId, String agentId, String command, Path stdout, Path stderr) {
+            this.id = id;
+            this.userId = userId;
+            this.agentId = agentId;
+            this.command = command;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+
+        boolean isFinished() {
+            return finishedAt > 0;
+        }
+
+        JobStatus toStatus() {
+            lock.lock();
+            try {
+                return new JobStatus(id, command, status, formatTime(createdAt), formatTime(startedAt),
+                        formatTime(finishedAt), isFinished() ? result : null, error);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
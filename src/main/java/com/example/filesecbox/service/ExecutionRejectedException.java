@@ -0,0 +1,19 @@
+package com.example.filesecbox.service;
+
+/**
+ * 执行队列已满或排队超时：由控制器映射为 429，并通过 Retry-After 提示客户端稍后重试。
+ */
+public class ExecutionRejectedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterSeconds;
+
+    public ExecutionRejectedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
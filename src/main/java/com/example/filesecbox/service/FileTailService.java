@@ -0,0 +1,312 @@
+package com.example.filesecbox.service;
+
+import com.example.filesecbox.model.TailResult;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 文件尾部读取与追踪：tail 从文件末尾向前扫描定位最后 N 行；follow 通过 SSE 从记录的偏移持续推送新增的完整行。
+ * 所有追踪者共享一个 WatchService (Linux 下基于 inotify) 接收目录变更通知，并以定时轮询兜底，
+ * 每次推送只读取新增字节。
+ */
+@Service
+public class FileTailService {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(FileTailService.class);
+
+    private static final int SCAN_BLOCK = 64 * 1024;
+    // 单次推送读取的最大字节数
+    private static final int MAX_PUSH_BYTES = 1024 * 1024;
+    private static final long HEARTBEAT_MILLIS = 15000;
+
+    @Value("${app.tail.follow.timeout-ms:600000}")
+    private long followTimeoutMillis;
+
+    @Value("${app.tail.poll-interval-ms:1000}")
+    private long pollIntervalMillis;
+
+    private final ConcurrentHashMap<Path, Set<Follower>> followers = new ConcurrentHashMap<>();
+    // 目录 -> 注册的监听及其追踪文件数
+    private final Map<Path, WatchKey> watchKeys = new HashMap<>();
+    private final Map<Path, Integer> watchCounts = new HashMap<>();
+    private final ExecutorService pushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private ScheduledExecutorService ticker;
+    private WatchService watchService;
+
+    @PostConstruct
+    public void init() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            Thread.ofPlatform().daemon().name("tail-watcher").start(this::watchLoop);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("WatchService unavailable, file follow falls back to polling only", e);
+        }
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> Thread.ofPlatform().daemon().name("tail-poller").unstarted(r));
+        ticker.scheduleWithFixedDelay(this::pollAll, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        ticker.shutdownNow();
+        pushExecutor.shutdownNow();
+        if (watchService != null) watchService.close();
+    }
+
+    /**
+     * 返回文件最后 n 行，从文件末尾按块向前扫描，只读取所需的尾部字节。行终止符与 Files.lines 一致。
+     */
+    public TailResult tail(Path file, int n) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = tailStart(channel, size, n);
+            if (size - start > Integer.MAX_VALUE - 8) {
+                throw new IOException("Tail region too large, request fewer lines.");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) (size - start));
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) > 0) {
+                // 读满为止
+            }
+            return new TailResult(splitLines(buffer.array(), buffer.position()), start + buffer.position());
+        }
+    }
+
+    /**
+     * 从 offset 开始追踪文件，offset 为空时从当前末尾开始。事件：
+     * lines {offset, lines} 推送新增的完整行，reset {offset} 表示文件被截断后从头开始，deleted 表示文件已删除。
+     */
+    public SseEmitter follow(Path file, Long offset) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        SseEmitter emitter = new SseEmitter(followTimeoutMillis);
+        Follower follower = new Follower(key, offset != null ? Math.max(0, offset) : Files.size(key), emitter);
+        emitter.onCompletion(() -> unsubscribe(follower));
+        emitter.onTimeout(() -> {
+            unsubscribe(follower);
+            emitter.complete();
+        });
+        emitter.onError(e -> unsubscribe(follower));
+        subscribe(follower);
+        schedule(follower);
+        return emitter;
+    }
+
+    private long tailStart(FileChannel channel, long size, int n) throws IOException {
+        if (n <= 0) return size;
+        ByteBuffer block = ByteBuffer.allocate(SCAN_BLOCK);
+        int counted = 0;
+        int next = -1;
+        long pos = size;
+        while (pos > 0) {
+            int len = (int) Math.min(SCAN_BLOCK, pos);
+            pos -= len;
+            block.clear().limit(len);
+            while (block.hasRemaining() && channel.read(block, pos + block.position()) > 0) {
+                // 读满为止
+            }
+            for (int i = len - 1; i >= 0; i--) {
+                byte b = block.get(i);
+                long p = pos + i;
+                // 反向扫描：\r\n 只在 \n 处计数一次
+                boolean terminator = b == '\n' || (b == '\r' && next != '\n');
+                // 文件末尾的终止符不构成新的一行
+                if (terminator && p != size - 1 && ++counted == n) {
+                    return p + 1;
+                }
+                next = b;
+            }
+        }
+        return 0;
+    }
+
+    private synchronized void subscribe(Follower follower) throws IOException {
+        followers.computeIfAbsent(follower.file, k -> ConcurrentHashMap.newKeySet()).add(follower);
+        Path dir = follower.file.getParent();
+        if (watchService != null && watchCounts.merge(dir, 1, Integer::sum) == 1) {
+            try {
+                watchKeys.put(dir, dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE));
+            } catch (IOException e) {
+                log.warn("Failed to watch directory, relying on polling: {}", dir, e);
+            }
+        }
+    }
+
+    private synchronized void unsubscribe(Follower follower) {
+        if (!follower.closed.compareAndSet(false, true)) return;
+        followers.computeIfPresent(follower.file, (k, set) -> {
+            set.remove(follower);
+            return set.isEmpty() ? null : set;
+        });
+        Path dir = follower.file.getParent();
+        if (watchService != null && watchCounts.merge(dir, -1, Integer::sum) <= 0) {
+            watchCounts.remove(dir);
+            WatchKey key = watchKeys.remove(dir);
+            if (key != null) key.cancel();
+        }
+    }
+
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    followers.forEach((file, set) -> {
+                        if (file.getParent().equals(dir)) set.forEach(this::schedule);
+                    });
+                } else {
+                    Set<Follower> set = followers.get(dir.resolve((Path) event.context()));
+                    if (set != null) set.forEach(this::schedule);
+                }
+            }
+            key.reset();
+        }
+    }
+
+    /**
+     * 轮询兜底：覆盖丢失的通知与不支持 inotify 的文件系统，同时负责心跳。
+     */
+    private void pollAll() {
+        followers.values().forEach(set -> set.forEach(this::schedule));
+    }
+
+    /**
+     * 合并同一追踪者的并发通知：推送进行中到达的通知只会再触发一次推送。
+     */
+    private void schedule(Follower follower) {
+        if (follower.closed.get() || !follower.scheduled.compareAndSet(false, true)) return;
+        try {
+            pushExecutor.execute(() -> {
+                follower.scheduled.set(false);
+                push(follower);
+            });
+        } catch (RejectedExecutionException e) {
+            follower.scheduled.set(false);
+        }
+    }
+
+    /**
+     * 推送期间会阻塞在 SseEmitter.send 上，使用 ReentrantLock 而非 synchronized，避免虚拟线程固定载体线程。
+     */
+    private void push(Follower follower) {
+        follower.lock.lock();
+        try {
+            if (follower.closed.get()) return;
+            try {
+                if (!Files.exists(follower.file)) {
+                    follower.emitter.send(SseEmitter.event().name("deleted").data(Map.of("offset", follower.offset), MediaType.APPLICATION_JSON));
+                    follower.emitter.complete();
+                    unsubscribe(follower);
+                    return;
+                }
+                try (FileChannel channel = FileChannel.open(follower.file, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    if (size < follower.offset) {
+                        follower.offset = 0;
+                        send(follower, "reset", Map.of("offset", 0L));
+                    }
+                    while (follower.offset < size) {
+                        int len = (int) Math.min(MAX_PUSH_BYTES, size - follower.offset);
+                        ByteBuffer buffer = ByteBuffer.allocate(len);
+                        while (buffer.hasRemaining() && channel.read(buffer, follower.offset + buffer.position()) > 0) {
+                            // 读满为止
+                        }
+                        int end = completeLinesEnd(buffer.array(), buffer.position());
+                        if (end == 0) {
+                            // 尚未出现终止符：不足一次推送上限时等待后续写入，否则按超长行直接推送
+                            if (buffer.position() < MAX_PUSH_BYTES) break;
+                            end = utf8Boundary(buffer.array(), buffer.position());
+                        }
+                        follower.offset += end;
+                        Map<String, Object> data = new LinkedHashMap<>();
+                        data.put("offset", follower.offset);
+                        data.put("lines", splitLines(buffer.array(), end));
+                        send(follower, "lines", data);
+                    }
+                }
+                if (System.currentTimeMillis() - follower.lastSent >= HEARTBEAT_MILLIS) {
+                    follower.emitter.send(SseEmitter.event().comment("heartbeat"));
+                    follower.lastSent = System.currentTimeMillis();
+                }
+            } catch (IOException | IllegalStateException e) {
+                // 客户端断开或 emitter 已结束
+                log.debug("Stopping file follow: {}", follower.file, e);
+                unsubscribe(follower);
+                follower.emitter.completeWithError(e);
+            }
+        } finally {
+            follower.lock.unlock();
+        }
+    }
+
+    private void send(Follower follower, String name, Object data) throws IOException {
+        follower.emitter.send(SseEmitter.event().name(name).data(data, MediaType.APPLICATION_JSON));
+        follower.lastSent = System.currentTimeMillis();
+    }
+
+    /**
+     * 最后一个终止符之后的位置；末尾的单个 \r 可能是 \r\n 的前半部分，留待下次推送。
+     */
+    private static int completeLinesEnd(byte[] bytes, int len) {
+        for (int i = len - 1; i >= 0; i--) {
+            if (bytes[i] == '\n' || (bytes[i] == '\r' && i != len - 1)) return i + 1;
+        }
+        return 0;
+    }
+
+    /**
+     * 超长行按字节截断时回退到 UTF-8 字符边界，被截断的多字节字符留待下次推送。
+     */
+    private static int utf8Boundary(byte[] bytes, int len) {
+        int lead = len - 1;
+        while (lead > 0 && (bytes[lead] & 0xC0) == 0x80) lead--;
+        int b = bytes[lead] & 0xFF;
+        int width = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+        return lead > 0 && lead + width > len ? lead : len;
+    }
+
+    private static List<String> splitLines(byte[] bytes, int len) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new StringReader(new String(bytes, 0, len, StandardCharsets.UTF_8)));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    private static final class Follower {
+        private final Path file;
+        private final SseEmitter emitter;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final ReentrantLock lock = new ReentrantLock();
+        private long offset;
+        private long lastSent = System.currentTimeMillis();
+
+        Follower(Path file, long offset, SseEmitter emitter) {
+            this.file = file;
+            this.offset = offset;
+            this.emitter = emitter;
+        }
+    }
+}
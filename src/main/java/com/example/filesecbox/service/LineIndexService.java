@@ -0,0 +1,177 @@
+package com.example.filesecbox.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 稀疏行偏移索引：每 interval 行记录一次该行起始的字节偏移，分页读取时直接定位到最近的检查点，
+ * 之后最多顺序跳过 interval - 1 行。索引按需向后扩展，文件的 (inode, size, mtime) 变化或被显式失效时重建。
+ * 行终止符与 Files.lines 一致 (\n、\r、\r\n)。
+ */
+@Service
+public class LineIndexService {
+
+    private static final int SCAN_CHUNK = 1024 * 1024;
+
+    @Value("${app.content.line-index.interval:1000}")
+    private int interval;
+
+    @Value("${app.content.line-index.cache-size:1024}")
+    private int cacheSize;
+
+    private Map<Path, LineIndex> indexes;
+
+    @PostConstruct
+    public void init() {
+        this.indexes = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, LineIndex> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    /**
+     * 读取从第 offset 行 (从 1 开始) 起的至多 limit 行。
+     */
+    public List<String> readLines(Path file, int offset, int limit) throws IOException {
+        List<String> lines = new ArrayList<>();
+        if (limit <= 0) return lines;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            BufferedReader reader = openAt(file, file, channel, offset);
+            String line;
+            while (reader != null && lines.size() < limit && (line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * 将 channel 定位到第 offset 行 (从 1 开始) 并返回从该行开始读取的 reader，文件行数不足时返回 null。
+     * 索引以 key 标识，stat 取自与 channel 同一文件的 source (如硬链接快照)。reader 基于 channel，由调用方负责关闭 channel。
+     */
+    public BufferedReader openAt(Path key, Path source, FileChannel channel, int offset) throws IOException {
+        int startLine = Math.max(0, offset - 1);
+        LineIndex index = indexFor(key, source);
+        long[] checkpoint;
+        synchronized (index) {
+            checkpoint = index.seek(channel, startLine / interval);
+        }
+        if (checkpoint == null) return null;
+
+        channel.position(checkpoint[1]);
+        BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1));
+        for (long skip = startLine - checkpoint[0]; skip > 0; skip--) {
+            if (reader.readLine() == null) return null;
+        }
+        return reader;
+    }
+
+    /**
+     * 由写入路径调用：同一时间戳内的同尺寸改写无法通过 stat 识别，需显式失效。
+     */
+    public void invalidate(Path file) {
+        indexes.remove(file.toAbsolutePath().normalize());
+    }
+
+    private LineIndex indexFor(Path file, Path source) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+        return indexes.compute(key, (k, v) -> v != null && v.matches(attrs) ? v : new LineIndex(attrs));
+    }
+
+    private final class LineIndex {
+        private final Object fileKey;
+        private final long size;
+        private final long mtime;
+        // checkpoints[i] 为第 i * interval 行 (从 0 开始) 的起始字节偏移
+        private long[] checkpoints = new long[16];
+        private int count;
+        // 扫描进度：下一个待读字节、已结束的行数、上一个字节是否为 \r
+        private long scanPos;
+        private long scanLines;
+        private boolean prevCR;
+        private boolean complete;
+
+        LineIndex(BasicFileAttributes attrs) {
+            this.fileKey = attrs.fileKey();
+            this.size = attrs.size();
+            this.mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            checkpoints[count++] = 0;
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return Objects.equals(fileKey, attrs.fileKey()) && size == attrs.size()
+                    && mtime == attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * 返回第 slot 个检查点 {行号, 字节偏移}，必要时继续向后扫描；文件行数不足时返回 null。
+         */
+        long[] seek(FileChannel channel, int slot) throws IOException {
+            ByteBuffer buffer = null;
+            while (count <= slot && !complete) {
+                if (buffer == null) buffer = ByteBuffer.allocate(SCAN_CHUNK);
+                scan(channel, buffer);
+            }
+            if (slot >= count) return null;
+            return new long[]{(long) slot * interval, checkpoints[slot]};
+        }
+
+        private void scan(FileChannel channel, ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int n = channel.read(buffer, scanPos);
+            if (n <= 0) {
+                complete = true;
+                return;
+            }
+            buffer.flip();
+            for (int i = 0; i < n; i++) {
+                byte b = buffer.get(i);
+                long pos = scanPos + i;
+                if (b == '\n') {
+                    if (prevCR) {
+                        // \r\n：行已在 \r 处结束，起始偏移后移一个字节
+                        if (scanLines % interval == 0 && checkpoints[count - 1] == pos) {
+                            checkpoints[count - 1] = pos + 1;
+                        }
+                    } else {
+                        endLine(pos + 1);
+                    }
+                    prevCR = false;
+                } else if (b == '\r') {
+                    endLine(pos + 1);
+                    prevCR = true;
+                } else {
+                    prevCR = false;
+                }
+            }
+            scanPos += n;
+        }
+
+        private void endLine(long nextStart) {
+            scanLines++;
+            if (scanLines % interval == 0) {
+                if (count == checkpoints.length) {
+                    checkpoints = Arrays.copyOf(checkpoints, count * 2);
+                }
+                checkpoints[count++] = nextStart;
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.example.filesecbox.service;
+
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 分层锁管理：agent -> scope (baseline / 用户工作区) -> path 三级，上层使用意向锁 (IS/IX)。
+ * 不同用户工作区的写操作互不阻塞，只有基线变更才需要 agent 级排他锁。
+ * 路径级锁按哈希分段 (striped)，不随路径数量增长。锁不可重入，调用方不得嵌套获取。
+ * agent / scope 级锁表按引用计数管理：持有者与等待者都计入引用，计数归零时在同一次 compute 中移除，
+ * 因此表的大小只与当前活跃的 key 数量相关，且同一 key 在任意时刻只对应一个锁对象。
+ */
+@Service
+public class LockManager {
+
+    public enum Mode { IS, IX, S, X }
+
+    public enum Level { AGENT, SCOPE, PATH }
+
+    public static final String BASELINE_SCOPE = "baseline";
+    private static final int PATH_STRIPES = 1024;
+
+    private final ConcurrentHashMap<String, IntentionLock> agentLocks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, IntentionLock> scopeLocks = new ConcurrentHashMap<>();
+    private final LongAdder lockCreations = new LongAdder();
+    private final LongAdder lockEvictions = new LongAdder();
+    private final AtomicLong peakTableSize = new AtomicLong();
+    private final ReentrantReadWriteLock[] pathStripes = new ReentrantReadWriteLock[PATH_STRIPES];
+    private final Map<Level, LevelStats> stats = new EnumMap<>(Level.class);
+
+    public LockManager() {
+        for (int i = 0; i < PATH_STRIPES; i++) {
+            pathStripes[i] = new ReentrantReadWriteLock();
+        }
+        for (Level level : Level.values()) {
+            stats.put(level, new LevelStats());
+        }
+    }
+
+    public static String workspaceScope(String userId) {
+        return "ws:" + userId;
+    }
+
+    /**
+     * agent 级 S / X 锁。
+     */
+    public Lease lockAgent(String agentId, boolean exclusive, long timeoutMillis) throws InterruptedException {
+        Lease lease = new Lease();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (!lease.acquire(Level.AGENT, agentLocks, agentId, exclusive ? Mode.X : Mode.S, deadline)) {
+            return null;
+        }
+        return lease;
+    }
+
+    /**
+     * 同时锁定多个 scope (scope -> 是否排他)，agent 级加对应意向锁。scope 按名称排序获取，避免死锁。
+     */
+    public Lease lockScopes(String agentId, Map<String, Boolean> scopes, long timeoutMillis) throws InterruptedException {
+        Lease lease = new Lease();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean anyExclusive = scopes.containsValue(Boolean.TRUE);
+        if (!lease.acquire(Level.AGENT, agentLocks, agentId, anyExclusive ? Mode.IX : Mode.IS, deadline)) {
+            return null;
+        }
+        for (Map.Entry<String, Boolean> e : new TreeMap<>(scopes).entrySet()) {
+            Mode mode = e.getValue() ? Mode.X : Mode.S;
+            if (!lease.acquire(Level.SCOPE, scopeLocks, scopeKey(agentId, e.getKey()), mode, deadline)) {
+                lease.close();
+                return null;
+            }
+        }
+        return lease;
+    }
+
+    /**
+     * 锁定 scope 内的单个路径，agent 与 scope 级加意向锁。
+     */
+    public Lease lockPath(String agentId, String scope, String path, boolean exclusive, long timeoutMillis) throws InterruptedException {
+        Lease lease = new Lease();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Mode intention = exclusive ? Mode.IX : Mode.IS;
+        if (!lease.acquire(Level.AGENT, agentLocks, agentId, intention, deadline)
+                || !lease.acquire(Level.SCOPE, scopeLocks, scopeKey(agentId, scope), intention, deadline)) {
+            lease.close();
+            return null;
+        }
+        ReentrantReadWriteLock stripe = pathStripes[Math.floorMod(Objects.hash(agentId, scope, path), PATH_STRIPES)];
+        if (!lease.acquireStripe(exclusive ? stripe.writeLock() : stripe.readLock(), deadline)) {
+            lease.close();
+            return null;
+        }
+        return lease;
+    }
+
+    /**
+     * 各层级的等待与持有耗时统计 (毫秒)，以及锁表大小与回收情况。
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<Level, LevelStats> e : stats.entrySet()) {
+            result.put(e.getKey().name().toLowerCase(), e.getValue().snapshot());
+        }
+        Map<String, Object> table = new LinkedHashMap<>();
+        table.put("agentEntries", agentLocks.size());
+        table.put("scopeEntries", scopeLocks.size());
+        table.put("peakEntries", peakTableSize.get());
+        table.put("created", lockCreations.sum());
+        table.put("evicted", lockEvictions.sum());
+        result.put("table", table);
+        return result;
+    }
+
+    private static String scopeKey(String agentId, String scope) {
+        return agentId + "\u0000" + scope;
+    }
+
+    /**
+     * 取得 key 对应的锁并增加引用；不存在时创建。
+     */
+    private IntentionLock retain(ConcurrentHashMap<String, IntentionLock> table, String key) {
+        IntentionLock lock = table.compute(key, (k, v) -> {
+            if (v == null) {
+                v = new IntentionLock();
+                lockCreations.increment();
+            }
+            v.refs++;
+            return v;
+        });
+        peakTableSize.accumulateAndGet(agentLocks.size() + scopeLocks.size(), Math::max);
+        return lock;
+    }
+
+    /**
+     * 减少引用，归零时移除。与 retain 在同一 key 上串行执行，不会出现两个线程拿到不同锁对象的情况。
+     */
+    private void unretain(ConcurrentHashMap<String, IntentionLock> table, String key) {
+        table.computeIfPresent(key, (k, v) -> {
+            if (--v.refs > 0) return v;
+            lockEvictions.increment();
+            return null;
+        });
+    }
+
+    /**
+     * 一次加锁得到的全部锁，按获取的逆序释放。
+     */
+    public final class Lease implements AutoCloseable {
+        private final Deque<Runnable> releases = new ArrayDeque<>();
+
+        boolean acquire(Level level, ConcurrentHashMap<String, IntentionLock> table, String key, Mode mode, long deadline) throws InterruptedException {
+            IntentionLock lock = retain(table, key);
+            long start = System.nanoTime();
+            boolean ok = false;
+            try {
+                ok = lock.tryAcquire(mode, deadline, stats.get(level).contended);
+            } finally {
+                if (!ok) unretain(table, key);
+            }
+            return record(level, start, ok, () -> {
+                lock.release(mode);
+                unretain(table, key);
+            });
+        }
+
+        boolean acquireStripe(java.util.concurrent.locks.Lock lock, long deadline) throws InterruptedException {
+            long start = System.nanoTime();
+            boolean ok = lock.tryLock();
+            if (!ok) {
+                stats.get(Level.PATH).contended.increment();
+                ok = lock.tryLock(Math.max(0, deadline - start), TimeUnit.NANOSECONDS);
+            }
+            return record(Level.PATH, start, ok, lock::unlock);
+        }
+
+        private boolean record(Level level, long start, boolean ok, Runnable unlock) {
+            long acquired = System.nanoTime();
+            LevelStats levelStats = stats.get(level);
+            levelStats.recordWait(acquired - start, ok);
+            if (ok) {
+                releases.push(() -> {
+                    unlock.run();
+                    levelStats.recordHold(System.nanoTime() - acquired);
+                });
+            }
+            return ok;
+        }
+
+        @Override
+        public void close() {
+            while (!releases.isEmpty()) {
+                releases.pop().run();
+            }
+        }
+    }
+
+    /**
+     * 支持 IS/IX/S/X 的多粒度锁。按请求顺序授予：新请求与已持有者或排在其前面的等待者冲突时都要等待，避免排他请求饿死。
+     */
+    static final class IntentionLock {
+        private static final boolean[][] COMPATIBLE = {
+                //            IS     IX     S      X
+                /* IS */ {true, true, true, false},
+                /* IX */ {true, true, false, false},
+                /* S  */ {true, false, true, false},
+                /* X  */ {false, false, false, false},
+        };
+
+        private final ReentrantLock mutex = new ReentrantLock();
+        private final Condition changed = mutex.newCondition();
+        private final int[] held = new int[Mode.values().length];
+        private final List<Ticket> waiting = new ArrayList<>();
+        // 引用计数：仅在锁表的 compute 回调中修改
+        private int refs;
+
+        boolean tryAcquire(Mode mode, long deadline, LongAdder contended) throws InterruptedException {
+            mutex.lock();
+            try {
+                if (waiting.isEmpty() && compatibleWithHolders(mode)) {
+                    held[mode.ordinal()]++;
+                    return true;
+                }
+                contended.increment();
+                Ticket ticket = new Ticket(mode);
+                waiting.add(ticket);
+                try {
+                    while (true) {
+                        if (compatibleWithHolders(mode) && compatibleWithEarlierWaiters(ticket)) {
+                            held[mode.ordinal()]++;
+                            return true;
+                        }
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) return false;
+                        changed.awaitNanos(remaining);
+                    }
+                } finally {
+                    removeTicket(ticket);
+                    changed.signalAll();
+                }
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        void release(Mode mode) {
+            mutex.lock();
+            try {
+                held[mode.ordinal()]--;
+                changed.signalAll();
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        private boolean compatibleWithHolders(Mode mode) {
+            for (Mode other : Mode.values()) {
+                if (held[other.ordinal()] > 0 && !COMPATIBLE[mode.ordinal()][other.ordinal()]) return false;
+            }
+            return true;
+        }
+
+        private boolean compatibleWithEarlierWaiters(Ticket ticket) {
+            for (Ticket ahead : waiting) {
+                if (ahead == ticket) return true;
+                if (!COMPATIBLE[ticket.mode.ordinal()][ahead.mode.ordinal()]) return false;
+            }
+            return true;
+        }
+
+        private void removeTicket(Ticket ticket) {
+            for (Iterator<Ticket> it = waiting.iterator(); it.hasNext(); ) {
+                if (it.next() == ticket) {
+                    it.remove();
+                    return;
+                }
+            }
+        }
+
+        private static final class Ticket {
+            private final Mode mode;
+
+            Ticket(Mode mode) {
+                this.mode = mode;
+            }
+        }
+    }
+
+    private static final class LevelStats {
+        private final LongAdder acquisitions = new LongAdder();
+        private final LongAdder contended = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAdder holdNanos = new LongAdder();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        private final AtomicLong maxHoldNanos = new AtomicLong();
+
+        void recordWait(long nanos, boolean acquired) {
+            if (acquired) acquisitions.increment();
+            else timeouts.increment();
+            waitNanos.add(nanos);
+            maxWaitNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        void recordHold(long nanos) {
+            holdNanos.add(nanos);
+            maxHoldNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        Map<String, Object> snapshot() {
+            long count = acquisitions.sum();
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("acquisitions", count);
+            m.put("contended", contended.sum());
+            m.put("timeouts", timeouts.sum());
+            m.put("avgWaitMs", count == 0 ? 0.0 : waitNanos.sum() / 1e6 / count);
+            m.put("maxWaitMs", maxWaitNanos.get() / 1e6);
+            m.put("avgHoldMs", count == 0 ? 0.0 : holdNanos.sum() / 1e6 / count);
+            m.put("maxHoldMs", maxHoldNanos.get() / 1e6);
+            return m;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.filesecbox.service;
+
+import com.example.filesecbox.model.ExecutionResult;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * 命令输出收集：进程输出已由内核写入文件，这里只按字节读取开头 head-bytes 与末尾 tail-bytes 两段并解码，
+ * 不逐行构造字符串。超出部分不进入响应体，完整输出转存到工作区 files/.output 下，可通过分页读取接口查看。
+ */
+@Service
+public class OutputCapture {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(OutputCapture.class);
+
+    public static final String OUTPUT_DIR = "files/.output";
+
+    @Value("${app.exec.output.head-bytes:65536}")
+    private int headBytes;
+
+    @Value("${app.exec.output.tail-bytes:65536}")
+    private int tailBytes;
+
+    // 每个工作区保留的转存文件数
+    @Value("${app.exec.output.retain:20}")
+    private int retain;
+
+    /**
+     * 汇总执行结果。workspaceRoot 为空时不转存 (如异步任务，完整输出由任务输出接口提供)。
+     */
+    public ExecutionResult collect(Path workspaceRoot, Path stdout, Path stderr, int exitCode, Charset charset) throws IOException {
+        Captured out = capture(stdout, charset);
+        Captured err = capture(stderr, charset);
+        ExecutionResult result = new ExecutionResult(out.text, err.text, exitCode);
+        result.setStdoutBytes(out.size);
+        result.setStderrBytes(err.size);
+        result.setStdoutTruncated(out.truncated);
+        result.setStderrTruncated(err.truncated);
+        if (workspaceRoot != null && (out.truncated || err.truncated)) {
+            String id = "exec-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"))
+                    + "-" + UUID.randomUUID().toString().substring(0, 8);
+            Path dir = workspaceRoot.resolve(OUTPUT_DIR);
+            Files.createDirectories(dir);
+            if (out.truncated) result.setStdoutPath(spill(stdout, dir, id + ".stdout.log"));
+            if (err.truncated) result.setStderrPath(spill(stderr, dir, id + ".stderr.log"));
+            prune(dir);
+        }
+        return result;
+    }
+
+    private Captured capture(Path file, Charset charset) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size <= (long) headBytes + tailBytes) {
+                return new Captured(normalize(decode(read(channel, 0, (int) size), charset)).trim(), size, false);
+            }
+            boolean utf8 = charset.equals(StandardCharsets.UTF_8);
+            // 多读 3 个字节用于在字符边界处截断
+            ByteBuffer head = read(channel, 0, headBytes + 3);
+            int headEnd = headBytes;
+            while (utf8 && headEnd > 0 && headEnd < head.limit() && isContinuation(head.get(headEnd))) headEnd--;
+            head.limit(headEnd);
+
+            long tailStart = size - tailBytes;
+            ByteBuffer tail = read(channel, tailStart, tailBytes);
+            while (utf8 && tail.hasRemaining() && isContinuation(tail.get(tail.position()))) {
+                tail.position(tail.position() + 1);
+            }
+            long omitted = tailStart + tail.position() - headEnd;
+            String text = normalize(decode(head, charset)) + "\n... [truncated " + omitted + " bytes] ...\n"
+                    + normalize(decode(tail, charset));
+            return new Captured(text.trim(), size, true);
+        }
+    }
+
+    private String spill(Path source, Path dir, String name) throws IOException {
+        Files.move(source, dir.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+        return OUTPUT_DIR + "/" + name;
+    }
+
+    /**
+     * 只保留最新的 retain 个转存文件。
+     */
+    private void prune(Path dir) {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(dir)) {
+            stream.filter(p -> p.getFileName().toString().startsWith("exec-")).forEach(files::add);
+        } catch (IOException e) {
+            log.warn("Failed to list execution output directory: {}", dir, e);
+            return;
+        }
+        if (files.size() <= retain) return;
+        files.sort(Comparator.comparing(OutputCapture::modifiedTime).reversed());
+        for (Path old : files.subList(retain, files.size())) {
+            try {
+                Files.deleteIfExists(old);
+            } catch (IOException e) {
+                log.warn("Failed to delete old execution output: {}", old, e);
+            }
+        }
+    }
+
+    private static long modifiedTime(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class).lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - position)));
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+            // 读满为止
+        }
+        return buffer.flip();
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+    private static String decode(ByteBuffer bytes, Charset charset) throws IOException {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        return decoder.decode(bytes).toString();
+    }
+
+    /**
+     * 行终止符统一为 \n，与逐行读取再拼接的旧行为一致。
+     */
+    private static String normalize(String text) {
+        return text.indexOf('\r') < 0 ? text : text.replace("\r\n", "\n").replace('\r', '\n');
+    }
+
+    private record Captured(String text, long size, boolean truncated) {
+    }
+}
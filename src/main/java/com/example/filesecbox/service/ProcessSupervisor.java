@@ -0,0 +1,218 @@
+package com.example.filesecbox.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 子进程监管：准入控制 (全局与单 agent 并发上限、有界等待队列) 与进程生命周期管理。
+ * 标准输出/错误由内核直接重定向到临时文件，不再为每个进程创建读取线程；
+ * 等待进程结束使用 onExit() 而非 waitFor()，在虚拟线程上等待时只挂起虚拟线程，不占用平台线程。
+ */
+@Service
+public class ProcessSupervisor {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ProcessSupervisor.class);
+
+    @Value("${app.exec.max-concurrent:64}")
+    private int maxConcurrent;
+
+    @Value("${app.exec.max-per-agent:8}")
+    private int maxPerAgent;
+
+    @Value("${app.exec.queue-capacity:256}")
+    private int queueCapacity;
+
+    @Value("${app.exec.queue-timeout-ms:30000}")
+    private long queueTimeoutMillis;
+
+    @Value("${app.exec.retry-after-seconds:5}")
+    private long retryAfterSeconds;
+
+    private Semaphore globalPermits;
+    private final ConcurrentHashMap<String, Semaphore> agentPermits = new ConcurrentHashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    @PostConstruct
+    public void init() {
+        globalPermits = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * 申请执行许可：先占用 agent 许可再占用全局许可，避免单个 agent 排队时占住全局名额。
+     * 等待者超过队列容量或在 queue-timeout 内未获得许可时抛出 ExecutionRejectedException。
+     */
+    public Permit admit(String agentId) throws IOException {
+        if (waiting.incrementAndGet() > queueCapacity) {
+            waiting.decrementAndGet();
+            throw reject("Server busy: Execution queue is full.");
+        }
+        Semaphore agent = agentPermits.computeIfAbsent(agentId, k -> new Semaphore(maxPerAgent, true));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        try {
+            if (!agent.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw reject("Server busy: Too many concurrent executions for agent " + agentId + ".");
+            }
+            boolean acquired = false;
+            try {
+                acquired = globalPermits.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } finally {
+                if (!acquired) agent.release();
+            }
+            if (!acquired) {
+                throw reject("Server busy: Too many concurrent executions.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Execution admission interrupted");
+        } finally {
+            waiting.decrementAndGet();
+        }
+        running.incrementAndGet();
+        return new Permit(agent);
+    }
+
+    /**
+     * 启动进程并等待结束，输出写入 scratchDir 下的临时文件，由 output 回调读取后删除。
+     * 超时或等待被中断时终止整个进程树。
+     */
+    public <T> T run(ProcessBuilder pb, Path scratchDir, long timeoutSeconds, OutputReader<T> output) throws IOException {
+        return run(scratchDir, (stdout, stderr) -> await(start(pb, stdout, stderr), timeoutSeconds), output);
+    }
+
+    /**
+     * 由 launcher 执行并返回退出码 (如交给预热的解释器进程)，输出文件的创建与清理同上。
+     */
+    public <T> T run(Path scratchDir, Launcher launcher, OutputReader<T> output) throws IOException {
+        Files.createDirectories(scratchDir);
+        Path stdout = Files.createTempFile(scratchDir, "exec-", ".out");
+        Path stderr = Files.createTempFile(scratchDir, "exec-", ".err");
+        try {
+            return output.read(stdout, stderr, launcher.launch(stdout, stderr));
+        } finally {
+            Files.deleteIfExists(stdout);
+            Files.deleteIfExists(stderr);
+        }
+    }
+
+    /**
+     * 启动进程，标准输出/错误分别重定向到给定文件。
+     */
+    public Process start(ProcessBuilder pb, Path stdout, Path stderr) throws IOException {
+        pb.redirectOutput(stdout.toFile());
+        pb.redirectError(stderr.toFile());
+        try {
+            return pb.start();
+        } catch (IOException e) {
+            throw new StartFailedException(e);
+        }
+    }
+
+    /**
+     * 等待进程结束并返回退出码；超时或等待被中断时终止整个进程树。
+     */
+    public int await(Process process, long timeoutSeconds) throws IOException {
+        try {
+            return process.onExit().get(timeoutSeconds, TimeUnit.SECONDS).exitValue();
+        } catch (TimeoutException e) {
+            destroyTree(process);
+            throw new ExecutionTimeoutException("Execution Timeout: Process killed after " + timeoutSeconds + " seconds.");
+        } catch (InterruptedException e) {
+            destroyTree(process);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Execution interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to wait for process", e.getCause());
+        }
+    }
+
+    /**
+     * 终止进程及其所有子孙进程 (bash -c 派生的管道与后台命令)。
+     */
+    public static void destroyTree(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("running", running.get());
+        stats.put("waiting", waiting.get());
+        stats.put("rejected", rejected.get());
+        stats.put("availableGlobalPermits", globalPermits.availablePermits());
+        stats.put("maxConcurrent", maxConcurrent);
+        stats.put("maxPerAgent", maxPerAgent);
+        stats.put("queueCapacity", queueCapacity);
+        return stats;
+    }
+
+    private ExecutionRejectedException reject(String message) {
+        rejected.incrementAndGet();
+        log.warn(message);
+        return new ExecutionRejectedException(message, retryAfterSeconds);
+    }
+
+    @FunctionalInterface
+    public interface Launcher {
+        int launch(Path stdout, Path stderr) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface OutputReader<T> {
+        T read(Path stdout, Path stderr, int exitCode) throws IOException;
+    }
+
+    /**
+     * 进程未能启动 (命令不存在、工作目录无效等)。
+     */
+    public static class StartFailedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StartFailedException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    public static class ExecutionTimeoutException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ExecutionTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 执行许可：关闭时归还 agent 与全局名额。
+     */
+    public final class Permit implements AutoCloseable {
+        private final Semaphore agent;
+        private boolean released;
+
+        private Permit(Semaphore agent) {
+            this.agent = agent;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (released) return;
+            released = true;
+            running.decrementAndGet();
+            globalPermits.release();
+            agent.release();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.filesecbox.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 预热的 python 执行池：每个 agent 维护若干常驻的 zygote 进程 (src/main/resources/python/worker.py)，
+ * 已完成解释器启动与常用模块导入。每次执行由 zygote fork 出独立子进程运行脚本，省去解释器冷启动。
+ * 只接管形如 "python3 skills/x/run.py arg ..." 的简单调用，含任何 shell 语法的命令仍走 bash -c。
+ * zygote 执行满 max-runs 次或常驻内存超过 max-rss-mb 后回收，空闲超时后关闭。
+ */
+@Service
+public class PythonWorkerPool {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(PythonWorkerPool.class);
+
+    private static final String WORKER_RESOURCE = "/python/worker.py";
+    private static final String WORKER_FILE = "python-worker.py";
+    private static final Set<String> PYTHON_COMMANDS = Set.of("python", "python3");
+    // 出现任何 shell 语法时交由 bash 解释
+    private static final Pattern SHELL_SYNTAX = Pattern.compile("[|&;<>()$`\\\\*?~{}\\[\\]!'#\\n\\r]");
+    private static final Pattern TOKEN = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+    @Value("${app.exec.python-pool.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.exec.python-pool.interpreter:python3}")
+    private String interpreter;
+
+    // 每个 agent 保留的空闲 zygote 数
+    @Value("${app.exec.python-pool.size-per-agent:2}")
+    private int sizePerAgent;
+
+    @Value("${app.exec.python-pool.max-runs:200}")
+    private int maxRuns;
+
+    @Value("${app.exec.python-pool.max-rss-mb:256}")
+    private long maxRssMb;
+
+    @Value("${app.exec.python-pool.idle-timeout-ms:300000}")
+    private long idleTimeoutMillis;
+
+    // 额外预加载的模块，逗号分隔
+    @Value("${app.exec.python-pool.preload:}")
+    private String preload;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ConcurrentHashMap<String, Deque<Worker>> idle = new ConcurrentHashMap<>();
+    private final ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor();
+    // 本进程已写入的 worker 脚本
+    private volatile Path installedScript;
+
+    public boolean isEnabled() {
+        return enabled && !System.getProperty("os.name").toLowerCase().contains("win");
+    }
+
+    /**
+     * 识别可由执行池接管的命令，返回脚本及参数 (argv[0] 为脚本路径)；不符合条件时返回 null。
+     */
+    public List<String> parse(String commandLine) {
+        if (SHELL_SYNTAX.matcher(commandLine).find()) return null;
+        List<String> tokens = new ArrayList<>();
+        Matcher matcher = TOKEN.matcher(commandLine.trim());
+        while (matcher.find()) {
+            tokens.add(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+        }
+        if (tokens.size() < 2 || !PYTHON_COMMANDS.contains(tokens.get(0))) return null;
+        String script = tokens.get(1);
+        if (script.startsWith("-") || !script.endsWith(".py")) return null;
+        return tokens.subList(1, tokens.size());
+    }
+
+    /**
+     * 由预热进程执行脚本，输出写入 stdout / stderr 文件，返回退出码。
+     * 无法获得可用的 zygote 时返回 null，调用方回退为普通进程执行。超时时终止脚本进程树。
+     */
+    public Integer run(String agentId, Path workingDir, List<String> argv, Map<String, String> env, Path scratchDir,
+                       Path stdout, Path stderr, long timeoutSeconds) throws IOException {
+        Worker worker = acquire(agentId, env, scratchDir);
+        if (worker == null) return null;
+        boolean reusable = false;
+        try {
+            Map<String, Object> request = new LinkedHashMap<>();
+            request.put("argv", argv);
+            request.put("cwd", workingDir.toAbsolutePath().toString());
+            request.put("stdout", stdout.toAbsolutePath().toString());
+            request.put("stderr", stderr.toAbsolutePath().toString());
+            worker.in.write(mapper.writeValueAsString(request));
+            worker.in.write('\n');
+            worker.in.flush();
+
+            String pidLine = worker.out.readLine();
+            if (pidLine == null) throw new IOException("Python worker exited unexpectedly");
+            long pid = mapper.readTree(pidLine).path("pid").asLong();
+
+            Future<String> exitLine = readers.submit(worker.out::readLine);
+            JsonNode exit;
+            try {
+                exit = mapper.readTree(exitLine.get(timeoutSeconds, TimeUnit.SECONDS));
+            } catch (TimeoutException e) {
+                killTree(pid);
+                // zygote 回收子进程后即可复用
+                reusable = awaitQuietly(exitLine) != null;
+                throw new ProcessSupervisor.ExecutionTimeoutException("Execution Timeout: Process killed after " + timeoutSeconds + " seconds.");
+            } catch (InterruptedException e) {
+                // 不等待 zygote 回收子进程，reusable 保持 false，由 release 销毁该 zygote
+                killTree(pid);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Execution interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException("Python worker protocol error", e.getCause());
+            }
+            if (exit == null || !exit.has("exit")) throw new IOException("Python worker exited unexpectedly");
+            worker.runs++;
+            reusable = worker.runs < maxRuns && exit.path("rss").asLong() <= maxRssMb * 1024;
+            return exit.path("exit").asInt();
+        } finally {
+            release(agentId, worker, reusable);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${app.exec.python-pool.cleanup-interval-ms:60000}")
+    public void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        idle.forEach((agentId, deque) -> {
+            synchronized (deque) {
+                deque.removeIf(worker -> {
+                    if (worker.lastUsed >= cutoff && worker.process.isAlive()) return false;
+                    worker.destroy();
+                    return true;
+                });
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        idle.values().forEach(deque -> {
+            synchronized (deque) {
+                deque.forEach(Worker::destroy);
+                deque.clear();
+            }
+        });
+        readers.shutdownNow();
+    }
+
+    private static void killTree(long pid) {
+        ProcessHandle.of(pid).ifPresent(p -> {
+            p.descendants().forEach(ProcessHandle::destroyForcibly);
+            p.destroyForcibly();
+        });
+    }
+
+    private Worker acquire(String agentId, Map<String, String> env, Path scratchDir) {
+        Deque<Worker> deque = idle.computeIfAbsent(agentId, k -> new ArrayDeque<>());
+        synchronized (deque) {
+            Worker worker;
+            while ((worker = deque.pollFirst()) != null) {
+                if (worker.process.isAlive()) return worker;
+                worker.destroy();
+            }
+        }
+        try {
+            return spawn(env, scratchDir);
+        } catch (IOException e) {
+            log.warn("Failed to start python worker, falling back to process execution", e);
+            return null;
+        }
+    }
+
+    private void release(String agentId, Worker worker, boolean reusable) {
+        worker.lastUsed = System.currentTimeMillis();
+        if (reusable && worker.process.isAlive()) {
+            Deque<Worker> deque = idle.computeIfAbsent(agentId, k -> new ArrayDeque<>());
+            synchronized (deque) {
+                if (deque.size() < sizePerAgent) {
+                    deque.addFirst(worker);
+                    return;
+                }
+            }
+        }
+        worker.destroy();
+    }
+
+    private Worker spawn(Map<String, String> env, Path scratchDir) throws IOException {
+        Files.createDirectories(scratchDir);
+        Path script = scratchDir.resolve(WORKER_FILE);
+        // 本进程内首次使用时总是重新写入，避免升级后沿用磁盘上旧版本的 worker.py
+        if (!script.equals(installedScript) || !Files.exists(script)) {
+            try (InputStream is = PythonWorkerPool.class.getResourceAsStream(WORKER_RESOURCE)) {
+                if (is == null) throw new IOException("Missing resource " + WORKER_RESOURCE);
+                Path tmp = Files.createTempFile(scratchDir, "python-worker-", ".py");
+                try {
+                    Files.copy(is, tmp, StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(tmp, script, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+            installedScript = script;
+        }
+        ProcessBuilder pb = new ProcessBuilder(interpreter, "-u", script.toString(), preload);
+        pb.directory(scratchDir.toFile());
+        pb.environment().clear();
+        pb.environment().putAll(env);
+        pb.redirectError(ProcessBuilder.Redirect.appendTo(scratchDir.resolve("python-worker.log").toFile()));
+        Process process = pb.start();
+        return new Worker(process);
+    }
+
+    private static String awaitQuietly(Future<String> line) {
+        try {
+            return line.get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static final class Worker {
+        private final Process process;
+        private final BufferedWriter in;
+        private final BufferedReader out;
+        private int runs;
+        private long lastUsed = System.currentTimeMillis();
+
+        Worker(Process process) {
+            this.process = process;
+            this.in = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        void destroy() {
+            killTree(process.pid());
+        }
+    }
+}
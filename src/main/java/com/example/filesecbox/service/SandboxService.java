@@ -2,6 +2,7 @@ package com.example.filesecbox.service;
 
 import com.example.filesecbox.model.*;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -10,24 +11,25 @@ import org.springframework.util.FileSystemUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.function.Consumer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.ZipFile;
 
 @Service
 public class SandboxService {
@@ -43,11 +45,49 @@ public class SandboxService {
     @Value("${app.skill.creator.url:}")
     private String skillCreatorUrl;
 
+    // 工作区物化方式：link (硬链接写时复制) / copy (全量拷贝)
+    @Value("${app.workspace.provision-mode:link}")
+    private String provisionMode;
+
+    // link 模式下命令执行前断开硬链接的方式：auto (文件系统支持时以 reflink 克隆，数据块继续共享) / never (总是复制)
+    @Value("${app.workspace.isolation-reflink:auto}")
+    private String isolationReflink;
+
+    // 管理员同步时并行处理的技能数
+    @Value("${app.sync.parallelism:8}")
+    private int syncParallelism;
+
+    // 每轮清理至多删除的空闲工作区数
+    @Value("${app.workspace.cleanup.max-per-run:20}")
+    private int cleanupMaxPerRun;
+
+    private ExecutorService syncExecutor;
+
+    // link 模式下已断开全部硬链接的工作区；检出、发布等重新建立链接的操作会将其移出
+    private final Set<Path> isolatedWorkspaces = java.util.concurrent.ConcurrentHashMap.newKeySet();
+    // 正在运行命令的工作区 -> 命令数；其间的检出与发布不再建立硬链接
+    private final Map<Path, Integer> runningCommands = new java.util.concurrent.ConcurrentHashMap<>();
+    private boolean reflinkIsolation;
+    // 隔离统计：无需断开 / reflink 克隆 (数据块仍共享) / 复制，以及被断开的共享文件数与复制的字节数
+    private final java.util.concurrent.atomic.LongAdder isolationsUnshared = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder isolationsCloned = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder isolationsCopied = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder isolatedFiles = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder isolationBytesCopied = new java.util.concurrent.atomic.LongAdder();
+
     private Path productRoot;
     private static final String BASELINE_DIR = "baseline";
     private static final String WORKSPACES_DIR = "workspaces";
     private static final String META_DIR = ".meta";
     private static final String SKILL_CREATOR_DIR = "skill-creator";
+    private static final String MANIFESTS_DIR = "manifests";
+    private static final String TMP_DIR = ".tmp";
+    private static final String STAGING_DIR = ".staging";
+    private static final String JOURNAL_FILE = "journal.properties";
+    private static final String ACCESS_INDEX_FILE = "workspace_access.properties";
+    private static final int MAX_BATCH_OPERATIONS = 200;
+    private static final int MAX_ARCHIVE_ATTEMPTS = 3;
+    private static final java.util.regex.Pattern COMMAND_PATH_PATTERN = java.util.regex.Pattern.compile("\"([^\"]+)\"|([^\\s><|&;'\"]+)");
 
     @Autowired
     private StorageService storageService;
@@ -55,13 +95,61 @@ public class SandboxService {
     @Autowired
     private SkillExecutor skillExecutor;
 
+    @Autowired
+    private ExecutionJobService executionJobService;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Autowired
+    private SkillDigestService skillDigestService;
+
+    @Autowired
+    private SkillFlattener skillFlattener;
+
+    @Autowired
+    private SkillCatalog skillCatalog;
+
+    @Autowired
+    private SyncMetadataStore syncMetadataStore;
+
+    @Autowired
+    private WorkspaceAccessTracker workspaceAccessTracker;
+
+    @Autowired
+    private SkillArchiveService skillArchiveService;
+
+    @Autowired
+    private SkillArchiveCache skillArchiveCache;
+
+    @Autowired
+    private LineIndexService lineIndexService;
+
+    @Autowired
+    private FileTailService fileTailService;
+
     @PostConstruct
     public void init() throws IOException {
         String os = System.getProperty("os.name").toLowerCase();
         String finalPath = os.contains("win") ? productRootWin : productRootLinux;
         
         this.productRoot = Paths.get(finalPath).toAbsolutePath().normalize();
+        this.syncExecutor = Executors.newFixedThreadPool(Math.max(1, syncParallelism),
+                Thread.ofPlatform().name("skill-sync-", 0).daemon(true).factory());
         Files.createDirectories(productRoot);
+        // 清理上次运行遗留的临时解压目录
+        storageService.deleteRecursively(productRoot.resolve(TMP_DIR));
+        Files.createDirectories(productRoot.resolve(TMP_DIR));
+        reflinkIsolation = "link".equalsIgnoreCase(provisionMode) && !"never".equalsIgnoreCase(isolationReflink)
+                && storageService.supportsReflink(productRoot.resolve(TMP_DIR));
+        log.info("Workspace isolation before command execution uses {}", reflinkIsolation ? "reflink clones" : "file copies");
+        // 完成上次运行中断的基线发布
+        recoverStagedUploads();
+        // 历史基线一次性整理 (A/A -> A) 并纳入 blob 存储，读取路径不再修改基线
+        migrateBaselines();
+        // 载入工作区访问索引，并在后台补登索引中缺失的工作区 (首次启动或上次持久化之后创建的)
+        workspaceAccessTracker.load(productRoot.resolve(META_DIR).resolve(ACCESS_INDEX_FILE));
+        Thread.ofVirtual().name("workspace-access-seed").start(this::seedWorkspaceAccess);
         log.info("Sandbox Service initialized with product root: {}", productRoot);
 
         // 下载 Skill-Creator
@@ -83,11 +171,13 @@ public class SandboxService {
             conn.setReadTimeout(30000);
             
             if (conn.getResponseCode() == 200) {
+                Path archive;
                 try (InputStream is = conn.getInputStream()) {
-                    byte[] data = storageService.readAllBytesFromInputStream(is);
-                    
+                    archive = skillArchiveService.spool(is, productRoot.resolve(TMP_DIR));
+                }
+                try (ZipFile zip = skillArchiveService.open(archive)) {
                     // 自动识别 zip 内是否存在唯一的根目录并剥离
-                    String commonRoot = detectCommonRoot(data);
+                    String commonRoot = skillArchiveService.detectCommonRoot(zip);
 
                     // 启动时覆盖逻辑：如果目录已存在，先删除
                     if (Files.exists(creatorDir)) {
@@ -96,13 +186,10 @@ public class SandboxService {
                     }
 
                     Files.createDirectories(creatorDir);
-                    processZipWithFallback(data, zis -> {
-                        try {
-                            extractZip(zis, creatorDir, commonRoot);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
+                    skillArchiveService.extract(zip, creatorDir, commonRoot);
+                    skillCatalog.invalidate(creatorDir);
+                } finally {
+                    Files.deleteIfExists(archive);
                 }
                 log.info("Skill-Creator refreshed successfully to: {}", creatorDir);
             }
@@ -111,56 +198,25 @@ public class SandboxService {
         }
     }
 
-    private String detectCommonRoot(byte[] data) throws IOException {
-        final String[] commonRootHolder = new String[1];
-        processZipWithFallback(data, zis -> {
-            try {
-                commonRootHolder[0] = performDetectCommonRoot(zis);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        });
-        return commonRootHolder[0];
+    private void validateAgentId(String agentId) {
+        if (agentId == null || agentId.isEmpty() || agentId.startsWith(".")
+                || agentId.indexOf('/') >= 0 || agentId.indexOf('\\') >= 0) {
+            throw new RuntimeException("Security Error: Invalid agentId: " + agentId);
+        }
     }
 
-    private void processZipWithFallback(byte[] data, Consumer<ZipInputStream> action) {
-        try {
-            try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(data), StandardCharsets.UTF_8)) {
-                action.accept(zis);
-            }
-        } catch (Exception e) {
-            // 捕获 IOException, IllegalArgumentException 或 action 抛出的 RuntimeException
-            try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(data), Charset.forName("GBK"))) {
-                action.accept(zis);
-            } catch (Exception ex) {
-                throw new RuntimeException("Failed to process ZIP with GBK fallback", ex);
-            }
-        }
-    }
-
-    private String performDetectCommonRoot(ZipInputStream zis) throws IOException {
-        String commonRoot = null;
-        ZipEntry entry;
-        boolean first = true;
-        while ((entry = zis.getNextEntry()) != null) {
-            String name = entry.getName().replace('\\', '/');
-            if (name.isEmpty() || name.equals("/")) continue;
-            int slashIdx = name.indexOf('/');
-            if (slashIdx == -1) {
-                if (!entry.isDirectory()) { commonRoot = null; break; } // 根目录下有文件
-                String root = name;
-                if (first) { commonRoot = root; first = false; }
-                else if (!root.equals(commonRoot)) { commonRoot = null; break; }
-            } else {
-                String root = name.substring(0, slashIdx);
-                if (first) { commonRoot = root; first = false; }
-                else if (!root.equals(commonRoot)) { commonRoot = null; break; }
-            }
+    /**
+     * userId 直接作为工作区目录名，不允许包含路径分隔符或指向上级目录。
+     */
+    private void validateUserId(String userId) {
+        if (userId == null || userId.isEmpty() || ".".equals(userId) || "..".equals(userId)
+                || userId.indexOf('/') >= 0 || userId.indexOf('\\') >= 0) {
+            throw new RuntimeException("Security Error: Invalid userId: " + userId);
         }
-        return commonRoot;
     }
 
     private Path getBaselineRoot(String agentId) {
+        validateAgentId(agentId);
         Path baselineRoot = productRoot.resolve(agentId).resolve(BASELINE_DIR).normalize();
         try {
             Files.createDirectories(baselineRoot.resolve("skills"));
@@ -171,18 +227,37 @@ public class SandboxService {
         return baselineRoot;
     }
 
+    /**
+     * 解析工作区根目录，首次访问 (或技能目录为空) 时从基线初始化。不得在已持有该 agent 的锁时调用。
+     */
     private Path getWorkspaceRoot(String userId, String agentId) {
+        validateAgentId(agentId);
+        validateUserId(userId);
+        workspaceAccessTracker.touch(agentId, userId);
         Path workspaceRoot = productRoot.resolve(agentId).resolve(WORKSPACES_DIR).resolve(userId).normalize();
+        if (needsProvisioning(workspaceRoot)) {
+            try {
+                // 工作区排他、基线共享：与上传、发布及管理员同步互斥
+                storageService.scopesLockedVoid(agentId, lockScopes(userId, true, false), () -> {
+                    if (needsProvisioning(workspaceRoot)) {
+                        syncWorkspaceFromBaseline(userId, agentId);
+                    }
+                });
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to initialize user workspace", e);
+            }
+        }
+        return workspaceRoot;
+    }
+
+    private boolean needsProvisioning(Path workspaceRoot) {
         Path skillsDir = workspaceRoot.resolve("skills");
         try {
-            if (!Files.exists(workspaceRoot) || !Files.exists(skillsDir) || isDirectoryEmpty(skillsDir)) {
-                syncWorkspaceFromBaseline(userId, agentId);
-            }
+            return !Files.exists(workspaceRoot) || !Files.exists(skillsDir) || isDirectoryEmpty(skillsDir);
         } catch (IOException e) {
             log.error("Failed to check workspace status, triggering sync anyway", e);
-            syncWorkspaceFromBaseline(userId, agentId);
+            return true;
         }
-        return workspaceRoot;
     }
 
     private boolean isDirectoryEmpty(Path path) throws IOException {
@@ -194,6 +269,9 @@ public class SandboxService {
         return false;
     }
 
+    /**
+     * 从基线初始化工作区。调用方持有工作区 X 锁与基线 S 锁，基线只读。
+     */
     private void syncWorkspaceFromBaseline(String userId, String agentId) {
         Path baselineRoot = getBaselineRoot(agentId);
         Path workspaceRoot = productRoot.resolve(agentId).resolve(WORKSPACES_DIR).resolve(userId).normalize();
@@ -201,16 +279,16 @@ public class SandboxService {
         try {
             log.info("Syncing workspace for user: {} agent: {}", userId, agentId);
             Files.createDirectories(workspaceRoot);
-            
-            // --- 物理压缩处理 (基线层 A/A -> A) ---
-            flattenAllSkills(baselineRoot.resolve("skills"));
 
             if (Files.exists(baselineRoot)) {
-                FileSystemUtils.copyRecursively(baselineRoot.toFile(), workspaceRoot.toFile());
+                if (linkInto(workspaceRoot)) isolatedWorkspaces.remove(workspaceRoot);
+                materialize(baselineRoot, workspaceRoot);
             }
             
             // --- 物理压缩处理 (工作空间层 A/A -> A) ---
-            flattenAllSkills(workspaceRoot.resolve("skills"));
+            skillFlattener.flattenChanged(workspaceRoot.resolve("skills"), null);
+            skillDigestService.invalidateTree(workspaceRoot);
+            skillCatalog.invalidate(workspaceRoot.resolve("skills"));
 
             // 兜底：确保工作区下的核心目录一定存在，防止基线拷贝不完整
             Files.createDirectories(workspaceRoot.resolve("skills"));
@@ -219,20 +297,22 @@ public class SandboxService {
             Path metaDir = workspaceRoot.resolve(META_DIR);
             Files.createDirectories(metaDir);
             
-            // 首次同步时，对所有从基线拷贝过来的技能更新其同步元数据
+            // 首次同步时，对所有从基线拷贝过来的技能更新其同步元数据 (一次写回)
             Path wsSkillsDir = workspaceRoot.resolve("skills");
+            Map<String, String> synced = new HashMap<>();
             if (Files.exists(wsSkillsDir)) {
                 try (DirectoryStream<Path> stream = Files.newDirectoryStream(wsSkillsDir)) {
                     for (Path skill : stream) {
                         if (Files.isDirectory(skill)) {
                             String skillName = skill.getFileName().toString();
                             if (!skillName.equals(SKILL_CREATOR_DIR)) {
-                                updateWorkspaceMetaForSkill(workspaceRoot, agentId, skillName);
+                                synced.put(skillName, recordSkillSync(workspaceRoot, agentId, skillName));
                             }
                         }
                     }
                 }
             }
+            syncMetadataStore.commit(workspaceRoot.resolve(META_DIR), synced);
             
         } catch (IOException e) {
             log.error("Failed to sync workspace", e);
@@ -240,49 +320,192 @@ public class SandboxService {
         }
     }
 
-    private void flattenAllSkills(Path skillsDir) {
-        if (!Files.exists(skillsDir)) return;
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(skillsDir)) {
-            for (Path skillEntry : stream) {
-                if (Files.isDirectory(skillEntry)) {
-                    physicallyFlattenSkill(skillEntry, skillEntry.getFileName().toString());
+    /**
+     * 按配置的物化方式将基线内容落到工作区：link 模式下文件与基线共享 inode，首次修改时才断开。
+     */
+    private void materialize(Path source, Path target) throws IOException {
+        if (linkInto(target)) {
+            storageService.linkRecursively(source, target);
+        } else {
+            FileSystemUtils.copyRecursively(source.toFile(), target.toFile());
+        }
+    }
+
+    /**
+     * link 模式下，命令执行前断开工作区 skills/ 与 files/ 下的全部硬链接。命令可能经由脚本、通配符、变量或 cd
+     * 写入任意文件，仅按命令文本判断无法覆盖，一旦原地写入共享 inode 就会同时改动基线、blob 与其他工作区。
+     * 断开后工作区记为已隔离，直到下一次检出重新建立链接，因此每个工作区只在检出后的首次执行时遍历一次。
+     * 文件系统支持 reflink 时以克隆代替复制，隔离后的工作区仍与基线共享数据块，只有被写入的部分才占用新空间。
+     * 同时登记一条运行中的命令 (须以 commandFinished 结束)，命令结束前的检出与发布改用独立副本。
+     */
+    private void isolateWorkspace(String userId, String agentId, Path workspaceRoot) throws IOException {
+        if (!"link".equalsIgnoreCase(provisionMode)) return;
+        storageService.scopesLockedVoid(agentId, lockScopes(userId, true, null), () -> {
+            if (!isolatedWorkspaces.contains(workspaceRoot)) {
+                long files = 0;
+                long bytes = 0;
+                boolean cloned = true;
+                for (String dir : List.of("skills", "files")) {
+                    StorageService.LinkBreak result = storageService.breakLinksInTree(workspaceRoot.resolve(dir), reflinkIsolation);
+                    files += result.files();
+                    bytes += result.bytes();
+                    if (result.files() > 0 && !result.cloned()) cloned = false;
                 }
+                isolatedWorkspaces.add(workspaceRoot);
+                recordIsolation(workspaceRoot, files, bytes, cloned);
             }
-        } catch (IOException e) {
-            log.warn("Failed to scan skills for flattening: {}", skillsDir, e);
+            runningCommands.merge(workspaceRoot, 1, Integer::sum);
+        });
+    }
+
+    private void recordIsolation(Path workspaceRoot, long files, long bytes, boolean cloned) {
+        isolatedFiles.add(files);
+        if (files == 0) {
+            isolationsUnshared.increment();
+        } else if (cloned) {
+            isolationsCloned.increment();
+        } else {
+            isolationsCopied.increment();
+            isolationBytesCopied.add(bytes);
         }
+        log.debug("Isolated workspace {}: {} shared files ({} bytes) {}", workspaceRoot, files, bytes, cloned ? "cloned" : "copied");
     }
 
-    private void physicallyFlattenSkill(Path skillDir, String skillName) {
-        Path nested = isRedundantDirectory(skillDir, skillName);
-        if (nested != null) {
-            try {
-                log.info("Physically flattening redundant directory: {}/{}", skillName, skillName);
-                Path tempDir = skillDir.getParent().resolve(skillName + "_tmp_" + System.currentTimeMillis());
-                Files.move(nested, tempDir);
-                storageService.deleteRecursively(skillDir.toFile().toPath());
-                Files.move(tempDir, skillDir);
-            } catch (IOException e) {
-                log.error("Failed to physically flatten directory: {}", skillDir, e);
-            }
+    /**
+     * 工作区共享情况：隔离总次数中有多少以 reflink 完成 (数据块仍与基线共享)、多少退化为完整复制及复制的字节数。
+     */
+    public Map<String, Object> getWorkspaceStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("provisionMode", provisionMode);
+        result.put("reflinkIsolation", reflinkIsolation);
+        result.put("isolatedWorkspaces", isolatedWorkspaces.size());
+        result.put("workspacesWithRunningCommands", runningCommands.size());
+        Map<String, Object> isolations = new LinkedHashMap<>();
+        isolations.put("nothingShared", isolationsUnshared.sum());
+        isolations.put("stillSharedViaReflink", isolationsCloned.sum());
+        isolations.put("fullyCopied", isolationsCopied.sum());
+        isolations.put("sharedFilesBroken", isolatedFiles.sum());
+        isolations.put("bytesCopied", isolationBytesCopied.sum());
+        result.put("isolations", isolations);
+        return result;
+    }
+
+    private void commandFinished(Path workspaceRoot) {
+        if (!"link".equalsIgnoreCase(provisionMode)) return;
+        runningCommands.computeIfPresent(workspaceRoot, (k, n) -> n > 1 ? n - 1 : null);
+    }
+
+    /**
+     * 是否可以在该工作区中建立与基线共享的硬链接：link 模式且当前没有运行中的命令。
+     */
+    private boolean linkInto(Path workspaceRoot) {
+        return "link".equalsIgnoreCase(provisionMode) && !runningCommands.containsKey(workspaceRoot);
+    }
+
+    /**
+     * 命令中以 skills/X 形式出现的技能名；出现通配符时无法确定范围，返回 null。
+     */
+    private Set<String> mentionedSkills(String command) {
+        Set<String> skills = new HashSet<>();
+        java.util.regex.Matcher matcher = COMMAND_PATH_PATTERN.matcher(command);
+        while (matcher.find()) {
+            String token = (matcher.group(1) != null ? matcher.group(1) : matcher.group(2)).replace('\\', '/');
+            if (token.startsWith("./")) token = token.substring(2);
+            String[] parts = token.split("/");
+            if (!parts[0].equals("skills") || parts.length < 2 || parts[1].equals(SKILL_CREATOR_DIR)) continue;
+            if (parts[1].isEmpty() || parts[1].chars().anyMatch(c -> "*?[{".indexOf(c) >= 0)) return null;
+            skills.add(parts[1]);
         }
+        return skills;
     }
 
-    private void updateWorkspaceMeta(Path workspaceRoot) throws IOException {
-        Path metaFile = workspaceRoot.resolve(META_DIR).resolve("skills_sync.properties");
-        Properties props = new Properties();
-        Path skillsDir = workspaceRoot.resolve("skills");
-        if (Files.exists(skillsDir)) {
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(skillsDir)) {
-                for (Path skill : stream) {
-                    if (Files.isDirectory(skill)) {
-                        props.setProperty(skill.getFileName().toString(), String.valueOf(Files.getLastModifiedTime(skill).toMillis()));
-                    }
+    private Path baselineManifestPath(String agentId, String skillName) {
+        return productRoot.resolve(agentId).resolve(MANIFESTS_DIR).resolve(manifestFileName(skillName));
+    }
+
+    private Path workspaceManifestPath(Path workspaceRoot, String skillName) {
+        return workspaceRoot.resolve(META_DIR).resolve(MANIFESTS_DIR).resolve(manifestFileName(skillName));
+    }
+
+    private String manifestFileName(String skillName) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(skillName.getBytes(StandardCharsets.UTF_8)) + ".properties";
+    }
+
+    /**
+     * 读取基线技能的 manifest。调用方至少持有基线 S 锁。
+     * 缺少 manifest 的历史技能正常情况下已在启动时迁移；遗漏时只将内容写入 blob 存储并补写 manifest，
+     * 不替换基线文件 (基线目录在 S 锁下保持不变，并发补写得到相同结果)。
+     */
+    private Map<String, String> getBaselineManifest(String agentId, String skillName) throws IOException {
+        Path manifestPath = baselineManifestPath(agentId, skillName);
+        Path blSkill = getBaselineRoot(agentId).resolve("skills").resolve(skillName);
+        if (Files.exists(manifestPath) || !Files.isDirectory(blSkill)) {
+            return blobStore.loadManifest(manifestPath);
+        }
+        log.warn("Baseline skill has no manifest, ingesting without relinking: {}", blSkill);
+        Map<String, String> manifest = blobStore.snapshot(blSkill, Collections.emptyMap(), true, false);
+        blobStore.saveManifest(manifestPath, manifest);
+        return manifest;
+    }
+
+    /**
+     * 启动时整理所有 agent 的基线：压缩冗余目录 (A/A -> A)，并将没有 manifest 的历史技能纳入 blob 存储。
+     * 每个 agent 在 agent 级排他锁内完成。
+     */
+    private void migrateBaselines() throws IOException {
+        try (DirectoryStream<Path> agents = Files.newDirectoryStream(productRoot)) {
+            for (Path agentDir : agents) {
+                String agentId = agentDir.getFileName().toString();
+                if (agentId.startsWith(".") || !Files.isDirectory(agentDir.resolve(BASELINE_DIR).resolve("skills"))) continue;
+                try {
+                    storageService.writeLockedVoid(agentId, () -> migrateBaseline(agentId));
+                } catch (IOException | RuntimeException e) {
+                    log.error("Failed to migrate baseline of agent: {}", agentId, e);
                 }
             }
         }
-        try (java.io.OutputStream os = Files.newOutputStream(metaFile)) {
-            props.store(os, "Workspace Sync Metadata");
+    }
+
+    /**
+     * 调用方持有 agent 级排他锁。
+     */
+    private void migrateBaseline(String agentId) throws IOException {
+        Path blSkillsDir = getBaselineRoot(agentId).resolve("skills");
+        skillFlattener.flattenChanged(blSkillsDir, null);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(blSkillsDir)) {
+            for (Path skill : stream) {
+                String skillName = skill.getFileName().toString();
+                Path manifestPath = baselineManifestPath(agentId, skillName);
+                if (!Files.isDirectory(skill) || skillName.equals(SKILL_CREATOR_DIR) || Files.exists(manifestPath)) continue;
+                log.info("Migrating baseline skill into blob store: {}", skill);
+                blobStore.saveManifest(manifestPath, blobStore.snapshot(skill, Collections.emptyMap(), true));
+            }
+        }
+    }
+
+    /**
+     * 将 manifest 发布为基线技能：只替换内容变化的文件。
+     */
+    private void publishToBaseline(String agentId, String skillName, Map<String, String> target) throws IOException {
+        Path blSkill = getBaselineRoot(agentId).resolve("skills").resolve(skillName);
+        Path manifestPath = baselineManifestPath(agentId, skillName);
+        blobStore.checkout(blSkill, blobStore.loadManifest(manifestPath), target);
+        blobStore.saveManifest(manifestPath, target);
+    }
+
+    /**
+     * 将基线技能检出到工作区：只替换内容变化的文件，工作区 manifest 由 updateWorkspaceMetaForSkill 统一记录。
+     */
+    private void checkoutToWorkspace(Path workspaceRoot, String agentId, String skillName) throws IOException {
+        Path wsSkill = workspaceRoot.resolve("skills").resolve(skillName);
+        Map<String, String> hint = blobStore.loadManifest(workspaceManifestPath(workspaceRoot, skillName));
+        boolean link = linkInto(workspaceRoot);
+        if (link) isolatedWorkspaces.remove(workspaceRoot);
+        try {
+            blobStore.checkout(wsSkill, hint, getBaselineManifest(agentId, skillName), link);
+        } finally {
+            skillDigestService.invalidateTree(wsSkill);
+            skillCatalog.invalidate(wsSkill);
         }
     }
 
@@ -300,143 +523,231 @@ public class SandboxService {
             return physicalPath;
         }
 
+        validateWorkspacePrefix(logicalPath);
+        return resolveWorkspacePath(getWorkspaceRoot(userId, agentId), logicalPath);
+    }
+
+    private void validateWorkspacePrefix(String logicalPath) {
         boolean isValidPrefix = logicalPath.equals("skills") || logicalPath.startsWith("skills/") ||
                                logicalPath.equals("files") || logicalPath.startsWith("files/");
         
         if (!isValidPrefix) {
             throw new RuntimeException("Security Error: Path must start with 'skills/' or 'files/'. Current path: " + logicalPath);
         }
-        Path workspaceRoot = getWorkspaceRoot(userId, agentId);
+    }
+
+    private Path resolveWorkspacePath(Path workspaceRoot, String logicalPath) {
         Path physicalPath = workspaceRoot.resolve(logicalPath).normalize();
         storageService.validateScope(physicalPath, workspaceRoot);
         return physicalPath;
     }
 
-    private Path isRedundantDirectory(Path dir, String expectedName) {
-        try {
-            if (!Files.exists(dir) || !Files.isDirectory(dir)) return null;
-            // 判定标准：一级目录没有 SKILL.md，且仅包含唯一的同名子目录 (符合 "A下面没有任何内容")
-            if (Files.exists(dir.resolve("SKILL.md"))) return null;
-            Path nested = dir.resolve(expectedName);
-            if (!Files.exists(nested) || !Files.isDirectory(nested)) return null;
-            
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
-                Iterator<Path> it = stream.iterator();
-                if (it.hasNext()) {
-                    it.next(); // 跳过第一个 (即 nested)
-                    if (it.hasNext()) return null; // 还有其他东西，不视为冗余
-                }
-            }
-            return nested;
-        } catch (Exception ignored) {}
-        return null;
-    }
-
     public String uploadSkillReport(String userId, String agentId, MultipartFile file) throws IOException {
         log.info("Starting skill upload to baseline for agent: {}, by user: {}", agentId, userId);
-        Path baselineSkillsDir = getBaselineRoot(agentId).resolve("skills");
-        
-        byte[] data = storageService.readAllBytesFromInputStream(file.getInputStream());
+        validateAgentId(agentId);
+
         Set<String> affectedSkills = new HashSet<>();
         Set<String> skillsWithMd = new HashSet<>();
+        // 上传内容直接落盘，不在堆内缓冲整个压缩包
+        Path archive = Files.createTempFile(productRoot.resolve(TMP_DIR), "upload-", ".zip");
+        // 暂存区与基线位于同一文件系统，锁内只需目录重命名
+        Path stagingDir = Files.createTempDirectory(productRoot.resolve(STAGING_DIR), "upload-");
 
-        storageService.writeLockedVoid(agentId, () -> {
-            processZipWithFallback(data, zis -> {
-                try {
-                    affectedSkills.clear();
-                    skillsWithMd.clear();
-                    scanAndValidateSkills(zis, affectedSkills, skillsWithMd);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+        try {
+            file.transferTo(archive);
+            try (ZipFile zip = skillArchiveService.open(archive)) {
+                skillArchiveService.scanSkills(zip, affectedSkills, skillsWithMd);
+
+                if (affectedSkills.isEmpty()) throw new RuntimeException("Validation Error: No valid skill directory found.");
+
+                // --- 新增：禁止上传名为 skill-creator 的技能 ---
+                if (affectedSkills.contains(SKILL_CREATOR_DIR)) {
+                    throw new RuntimeException("Validation Error: Skill name '" + SKILL_CREATOR_DIR + "' is reserved for system tools and cannot be uploaded.");
                 }
-            });
-            
-            if (affectedSkills.isEmpty()) throw new RuntimeException("Validation Error: No valid skill directory found.");
-            
-            // --- 新增：禁止上传名为 skill-creator 的技能 ---
-            if (affectedSkills.contains(SKILL_CREATOR_DIR)) {
-                throw new RuntimeException("Validation Error: Skill name '" + SKILL_CREATOR_DIR + "' is reserved for system tools and cannot be uploaded.");
+
+                skillArchiveService.extract(zip, stagingDir.resolve("new"), null);
             }
-            
+            Files.deleteIfExists(archive);
+
+            // --- 物理压缩处理 (A/A -> A) ---
+            skillFlattener.flattenAll(stagingDir.resolve("new"));
+
+            // 解压内容纳入 blob 存储并生成 manifest，均在锁外完成
+            Properties journal = new Properties();
+            journal.setProperty("agent", agentId);
             for (String skill : affectedSkills) {
-                storageService.deleteRecursively(baselineSkillsDir.resolve(skill));
+                Path staged = stagingDir.resolve("new").resolve(skill);
+                if (Files.isDirectory(staged)) {
+                    blobStore.saveManifest(stagingDir.resolve(MANIFESTS_DIR).resolve(manifestFileName(skill)),
+                            blobStore.snapshot(staged, Collections.emptyMap(), true));
+                    journal.setProperty("skill." + skill, "publish");
+                } else {
+                    journal.setProperty("skill." + skill, "delete");
+                }
             }
+            writeJournal(stagingDir, journal);
 
-            processZipWithFallback(data, zis -> {
+            storageService.writeLockedVoid(agentId, () -> {
                 try {
-                    extractZip(zis, baselineSkillsDir, null);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+                    applyStagedUpload(stagingDir, journal);
+                } catch (IOException | RuntimeException e) {
+                    rollbackStagedUpload(stagingDir, journal);
+                    throw e;
                 }
             });
-            
-            // --- 物理压缩处理 (A/A -> A) ---
-            flattenAllSkills(baselineSkillsDir);
-        });
+        } finally {
+            Files.deleteIfExists(archive);
+            storageService.deleteRecursively(stagingDir);
+        }
 
         return "Baseline updated successfully. Skills: " + affectedSkills;
     }
 
-    public List<SkillMetadata> getSkillList(String userId, String agentId, boolean includeStatus, String role) throws IOException {
-        if (includeStatus && "manager".equalsIgnoreCase(role)) {
-            storageService.writeLockedVoid(agentId, () -> {
-                syncFromBaselineToWorkspace(userId, agentId);
-            });
+    /**
+     * 以目录重命名将暂存技能换入基线：旧目录移入暂存区 old/，新目录从 new/ 移入，最后替换 manifest。
+     * 每一步都可重复执行，进程中断后由 recoverStagedUploads 按日志继续完成。
+     */
+    private void applyStagedUpload(Path stagingDir, Properties journal) throws IOException {
+        String agentId = journal.getProperty("agent");
+        Path blSkillsDir = getBaselineRoot(agentId).resolve("skills");
+        Files.createDirectories(blSkillsDir);
+        Files.createDirectories(stagingDir.resolve("old"));
+        for (String skill : stagedSkills(journal)) {
+            Path target = blSkillsDir.resolve(skill);
+            Path staged = stagingDir.resolve("new").resolve(skill);
+            Path old = stagingDir.resolve("old").resolve(skill);
+            boolean publish = "publish".equals(journal.getProperty("skill." + skill));
+            // 新目录尚未换入 (或本次为删除) 时，当前基线目录即为旧版本
+            if ((!publish || Files.exists(staged)) && Files.exists(target) && !Files.exists(old)) {
+                Files.move(target, old, StandardCopyOption.ATOMIC_MOVE);
+            }
+            if (publish && Files.exists(staged)) {
+                Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE);
+            }
         }
-
-        Path workspaceRoot = getWorkspaceRoot(userId, agentId);
-        Path wsSkillsDir = workspaceRoot.resolve("skills");
-        
-        Properties syncMeta = new Properties();
-        if (includeStatus) {
-            Path metaFile = workspaceRoot.resolve(META_DIR).resolve("skills_sync.properties");
-            if (Files.exists(metaFile)) {
-                try (java.io.InputStream is = Files.newInputStream(metaFile)) {
-                    syncMeta.load(is);
+        for (String skill : stagedSkills(journal)) {
+            Path manifest = baselineManifestPath(agentId, skill);
+            Path stagedManifest = stagingDir.resolve(MANIFESTS_DIR).resolve(manifestFileName(skill));
+            if ("publish".equals(journal.getProperty("skill." + skill))) {
+                if (Files.exists(stagedManifest)) {
+                    Files.createDirectories(manifest.getParent());
+                    Files.move(stagedManifest, manifest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
                 }
+            } else {
+                Files.deleteIfExists(manifest);
             }
         }
+    }
 
+    /**
+     * 换入过程中出错时恢复上传前的基线：已换入的新目录移回 new/，旧目录移回原位。
+     * 已被替换的 manifest 直接删除，下次读取时按目录内容重建。
+     */
+    private void rollbackStagedUpload(Path stagingDir, Properties journal) {
+        String agentId = journal.getProperty("agent");
         Path blSkillsDir = getBaselineRoot(agentId).resolve("skills");
+        for (String skill : stagedSkills(journal)) {
+            Path target = blSkillsDir.resolve(skill);
+            Path staged = stagingDir.resolve("new").resolve(skill);
+            Path old = stagingDir.resolve("old").resolve(skill);
+            boolean publish = "publish".equals(journal.getProperty("skill." + skill));
+            try {
+                if (publish && !Files.exists(staged) && Files.exists(target)) {
+                    Files.move(target, staged, StandardCopyOption.ATOMIC_MOVE);
+                }
+                if (Files.exists(old)) {
+                    Files.move(old, target, StandardCopyOption.ATOMIC_MOVE);
+                }
+                if (publish && !Files.exists(stagingDir.resolve(MANIFESTS_DIR).resolve(manifestFileName(skill)))) {
+                    Files.deleteIfExists(baselineManifestPath(agentId, skill));
+                }
+            } catch (IOException e) {
+                log.error("Failed to roll back staged skill: {}", target, e);
+            }
+        }
+        try {
+            // 被删除 manifest 的旧版本在锁内重新纳入 blob 存储
+            migrateBaseline(agentId);
+        } catch (IOException e) {
+            log.error("Failed to rebuild baseline manifests after rollback for agent: {}", agentId, e);
+        }
+    }
+
+    /**
+     * 启动时处理遗留的暂存目录：已写入日志的上传继续完成，其余直接丢弃。
+     */
+    private void recoverStagedUploads() throws IOException {
+        Path stagingRoot = productRoot.resolve(STAGING_DIR);
+        Files.createDirectories(stagingRoot);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(stagingRoot)) {
+            for (Path stagingDir : stream) {
+                Path journalFile = stagingDir.resolve(JOURNAL_FILE);
+                if (Files.exists(journalFile)) {
+                    Properties journal = new Properties();
+                    try (InputStream is = Files.newInputStream(journalFile)) {
+                        journal.load(is);
+                    }
+                    log.info("Completing interrupted baseline publish: {}", stagingDir);
+                    try {
+                        applyStagedUpload(stagingDir, journal);
+                    } catch (IOException | RuntimeException e) {
+                        log.error("Failed to complete interrupted baseline publish, keeping staging dir: {}", stagingDir, e);
+                        continue;
+                    }
+                }
+                storageService.deleteRecursively(stagingDir);
+            }
+        }
+    }
+
+    private void writeJournal(Path stagingDir, Properties journal) throws IOException {
+        Path tmp = stagingDir.resolve(JOURNAL_FILE + ".tmp");
+        try (java.io.OutputStream os = Files.newOutputStream(tmp)) {
+            journal.store(os, "Staged Baseline Publish");
+        }
+        Files.move(tmp, stagingDir.resolve(JOURNAL_FILE), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private List<String> stagedSkills(Properties journal) {
+        List<String> skills = new ArrayList<>();
+        for (String key : journal.stringPropertyNames()) {
+            if (key.startsWith("skill.")) skills.add(key.substring("skill.".length()));
+        }
+        Collections.sort(skills);
+        return skills;
+    }
+
+    public List<SkillMetadata> getSkillList(String userId, String agentId, boolean includeStatus, String role) throws IOException {
+        Path workspaceRoot = getWorkspaceRoot(userId, agentId);
+        if (includeStatus && "manager".equalsIgnoreCase(role)) {
+            storageService.scopesLockedVoid(agentId, lockScopes(userId, true, false), () -> {
+                syncFromBaselineToWorkspace(agentId, workspaceRoot);
+            });
+        }
+
+        Path wsSkillsDir = workspaceRoot.resolve("skills");
         
-        // --- 物理压缩处理 (基线层 A/A -> A) ---
-        flattenAllSkills(blSkillsDir);
+        Map<String, SyncMetadataStore.SyncState> syncMeta = includeStatus
+                ? syncMetadataStore.load(workspaceRoot.resolve(META_DIR)) : Collections.emptyMap();
 
-        return storageService.readLocked(agentId, () -> {
+        // 基线的 A/A -> A 压缩在上传 (暂存区) 与启动迁移时完成，只读的列表接口不再修改基线
+        return storageService.scopesLocked(agentId, lockScopes(userId, false, false), () -> {
             List<SkillMetadata> metadataList = new ArrayList<>();
             Set<String> processedSkills = new HashSet<>();
 
-            if (Files.exists(wsSkillsDir)) {
-                try (DirectoryStream<Path> stream = Files.newDirectoryStream(wsSkillsDir)) {
-                    for (Path skillEntry : stream) {
-                        if (Files.isDirectory(skillEntry) && Files.exists(skillEntry.resolve("SKILL.md"))) {
-                            String skillName = skillEntry.getFileName().toString();
-                            processedSkills.add(skillName);
-
-                            SkillMetadata meta = parseSkillMd(skillEntry);
-                            if (includeStatus) {
-                                String key = Base64.getEncoder().encodeToString(skillName.getBytes(StandardCharsets.UTF_8));
-                                long currentMtime = Files.getLastModifiedTime(skillEntry).toMillis();
-                                long lastSyncMtime = Long.parseLong(syncMeta.getProperty(key, "0"));
-                                Path blSkillPath = blSkillsDir.resolve(skillName);
-                                
-                                if (!Files.exists(blSkillPath)) {
-                                    meta.setStatus("LOCAL_ONLY");
-                                } else {
-                                    long blMtime = Files.getLastModifiedTime(blSkillPath).toMillis();
-                                    if (blMtime > currentMtime) meta.setStatus("OUT_OF_SYNC");
-                                    else if (currentMtime > lastSyncMtime) meta.setStatus("MODIFIED");
-                                    else meta.setStatus("UNCHANGED");
-                                }
-                                meta.setLastSyncTime(formatTime(lastSyncMtime));
-                            } else {
-                                meta.setStatus(null);
-                                meta.setLastSyncTime(null);
-                            }
-                            metadataList.add(meta);
-                        }
-                    }
+            // 元数据来自内存目录，只有 SKILL.md 发生变化的技能才会重新解析
+            for (Map.Entry<String, SkillMetadata> skill : skillCatalog.list(wsSkillsDir).entrySet()) {
+                String skillName = skill.getKey();
+                processedSkills.add(skillName);
+
+                SkillMetadata meta = skill.getValue();
+                if (includeStatus) {
+                    SyncMetadataStore.SyncState syncState = syncMeta.get(skillName);
+                    long lastSyncMtime = syncState != null ? syncState.getSyncTime() : 0;
+                    meta.setStatus(resolveSkillStatus(workspaceRoot, agentId, skillName, syncMeta));
+                    meta.setLastSyncTime(formatTime(lastSyncMtime));
                 }
+                metadataList.add(meta);
             }
 
             // 补充：默认返回全局的 skill-creator
@@ -444,7 +755,7 @@ public class SandboxService {
             if (Files.exists(globalCreatorPath) && Files.isDirectory(globalCreatorPath)) {
                 String creatorName = globalCreatorPath.getFileName().toString();
                 if (metadataList.stream().noneMatch(m -> m.getName().equals(creatorName))) {
-                    SkillMetadata creatorMeta = parseSkillMd(globalCreatorPath);
+                    SkillMetadata creatorMeta = skillCatalog.describe(globalCreatorPath);
                     if (includeStatus) {
                         creatorMeta.setStatus("UNCHANGED");
                         creatorMeta.setLastSyncTime("System");
@@ -457,6 +768,44 @@ public class SandboxService {
         });
     }
 
+    /**
+     * 基于内容摘要判定技能状态：工作区与基线一致为 UNCHANGED；基线自上次同步后有变化为 OUT_OF_SYNC；否则为 MODIFIED。
+     */
+    private String resolveSkillStatus(Path workspaceRoot, String agentId, String skillName, Map<String, SyncMetadataStore.SyncState> syncMeta) throws IOException {
+        Path blSkillPath = getBaselineRoot(agentId).resolve("skills").resolve(skillName);
+        Path wsSkillPath = workspaceRoot.resolve("skills").resolve(skillName);
+        if (!Files.exists(blSkillPath)) return "LOCAL_ONLY";
+
+        String blDigest = skillDigestService.digestOf(getBaselineManifest(agentId, skillName));
+        String wsDigest = skillDigestService.digest(wsSkillPath, () -> blobStore.loadManifest(workspaceManifestPath(workspaceRoot, skillName)));
+        if (wsDigest.equals(blDigest)) return "UNCHANGED";
+        return isBaselineAhead(blSkillPath, wsSkillPath, blDigest, skillName, syncMeta) ? "OUT_OF_SYNC" : "MODIFIED";
+    }
+
+    /**
+     * 基线自上次同步后是否发生了变化。没有摘要记录的历史数据沿用目录 mtime 比较。
+     */
+    private boolean isBaselineAhead(Path blSkillPath, Path wsSkillPath, String blDigest, String skillName, Map<String, SyncMetadataStore.SyncState> syncMeta) throws IOException {
+        SyncMetadataStore.SyncState syncState = syncMeta.get(skillName);
+        String syncedDigest = syncState != null ? syncState.getDigest() : null;
+        if (syncedDigest != null) {
+            return !syncedDigest.equals(blDigest);
+        }
+        return Files.getLastModifiedTime(blSkillPath).toMillis() > Files.getLastModifiedTime(wsSkillPath).toMillis();
+    }
+
+    /**
+     * 构造 scope 锁请求：用户工作区按 workspaceExclusive 加 S/X 锁；baselineExclusive 为 null 时不锁基线。
+     */
+    private Map<String, Boolean> lockScopes(String userId, boolean workspaceExclusive, Boolean baselineExclusive) {
+        Map<String, Boolean> scopes = new HashMap<>();
+        scopes.put(LockManager.workspaceScope(userId), workspaceExclusive);
+        if (baselineExclusive != null) {
+            scopes.put(LockManager.BASELINE_SCOPE, baselineExclusive);
+        }
+        return scopes;
+    }
+
     private String formatTime(long millis) {
         if (millis <= 0) return "Never";
         return LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(millis), java.time.ZoneId.systemDefault())
@@ -469,17 +818,18 @@ public class SandboxService {
         Path baselineSkillsDir = getBaselineRoot(agentId).resolve("skills");
         Path baselineSkill = baselineSkillsDir.resolve(skillName);
 
-        storageService.writeLockedVoid(agentId, () -> {
-            if ("bl2ws".equalsIgnoreCase(direction)) {
+        boolean toWorkspace = "bl2ws".equalsIgnoreCase(direction);
+        StorageService.IOVoidAction syncAction = () -> {
+            if (toWorkspace) {
                 // 基线 -> 工作区 (手动同步)
                 if (Files.exists(baselineSkill)) {
-                    storageService.deleteRecursively(workspaceSkill);
-                    Files.createDirectories(workspaceSkill.getParent());
-                    FileSystemUtils.copyRecursively(baselineSkill.toFile(), workspaceSkill.toFile());
+                    checkoutToWorkspace(workspaceRoot, agentId, skillName);
                     log.info("Workspace updated from baseline for skill: {}", skillName);
                 } else if (Files.exists(workspaceSkill)) {
                     // 如果基线不存在但工作区存在 (LOCAL_ONLY)，同步基线到工作区意味着删除工作区内容
                     storageService.deleteRecursively(workspaceSkill);
+                    skillDigestService.invalidateTree(workspaceSkill);
+                    skillCatalog.invalidate(workspaceSkill);
                     log.info("Workspace skill deleted during bl2ws sync (not found in baseline): {}", skillName);
                 } else {
                     throw new IOException("Skill not found in both baseline and workspace: " + skillName);
@@ -487,56 +837,62 @@ public class SandboxService {
             } else {
                 // 工作区 -> 基线 (ws2bl, 默认)
                 if (Files.exists(workspaceSkill)) {
-                    storageService.deleteRecursively(baselineSkill);
-                    Files.createDirectories(baselineSkill.getParent());
-                    FileSystemUtils.copyRecursively(workspaceSkill.toFile(), baselineSkill.toFile());
-                    
                     // --- 物理压缩处理 (A/A -> A) ---
-                    physicallyFlattenSkill(baselineSkill, skillName);
+                    skillFlattener.flattenSkill(workspaceSkill, skillName);
+
+                    Map<String, String> hint = blobStore.loadManifest(workspaceManifestPath(workspaceRoot, skillName));
+                    // 发布时工作区文件被替换为 blob 的硬链接；有命令运行时保留工作区的独立副本
+                    boolean relink = linkInto(workspaceRoot);
+                    if (relink) isolatedWorkspaces.remove(workspaceRoot);
+                    publishToBaseline(agentId, skillName, blobStore.snapshot(workspaceSkill, hint, true, relink));
+                    skillDigestService.invalidateTree(workspaceSkill);
                     
                     log.info("Baseline updated for skill: {}", skillName);
                 } else if (Files.exists(baselineSkill)) {
                     storageService.deleteRecursively(baselineSkill);
+                    Files.deleteIfExists(baselineManifestPath(agentId, skillName));
                     log.info("Baseline deleted for skill (workspace not found): {}", skillName);
                 } else {
                     throw new IOException("Skill not found in both workspace and baseline: " + skillName);
                 }
             }
             updateWorkspaceMetaForSkill(workspaceRoot, agentId, skillName);
-        });
+        };
+        if (toWorkspace) {
+            // 基线 -> 工作区只修改当前用户的工作区，无需 agent 级排他
+            storageService.scopesLockedVoid(agentId, lockScopes(userId, true, false), syncAction);
+        } else {
+            storageService.writeLockedVoid(agentId, syncAction);
+        }
 
         return "Skill synchronization completed (" + (direction != null ? direction : "ws2bl") + ") for: " + skillName;
     }
 
     private void updateWorkspaceMetaForSkill(Path workspaceRoot, String agentId, String skillName) throws IOException {
+        Map<String, String> synced = new HashMap<>();
+        synced.put(skillName, recordSkillSync(workspaceRoot, agentId, skillName));
+        syncMetadataStore.commit(workspaceRoot.resolve(META_DIR), synced);
+    }
+
+    /**
+     * 记录单个技能的同步状态：写入工作区 manifest 并返回基线摘要；基线不存在时删除 manifest 并返回 null。
+     * 返回值交给 SyncMetadataStore 批量提交。
+     */
+    private String recordSkillSync(Path workspaceRoot, String agentId, String skillName) throws IOException {
         log.info("Updating workspace meta for skill: {} in workspace: {}, agentId: {}", skillName, workspaceRoot, agentId);
-        Path metaFile = workspaceRoot.resolve(META_DIR).resolve("skills_sync.properties");
-        Properties props = new Properties();
-        if (Files.exists(metaFile)) {
-            try (java.io.InputStream is = Files.newInputStream(metaFile)) {
-                props.load(is);
-            }
-        }
         Path blSkillPath = getBaselineRoot(agentId).resolve("skills").resolve(skillName);
         Path wsSkillPath = workspaceRoot.resolve("skills").resolve(skillName);
 
-        log.info("Checking baseline path: {}", blSkillPath);
         if (Files.exists(blSkillPath) && Files.isDirectory(blSkillPath)) {
-            java.nio.file.attribute.FileTime blTime = Files.getLastModifiedTime(blSkillPath);
-            log.info("Baseline exists. Mtime: {}. Updating workspace skill path: {}", blTime.toMillis(), wsSkillPath);
-            if (Files.exists(wsSkillPath)) {
-                Files.setLastModifiedTime(wsSkillPath, blTime);
-            }
-            String key = Base64.getEncoder().encodeToString(skillName.getBytes(StandardCharsets.UTF_8));
-            props.setProperty(key, String.valueOf(blTime.toMillis()));
-        } else {
-            log.warn("Baseline skill path does not exist or is not a directory: {}", blSkillPath);
-            String key = Base64.getEncoder().encodeToString(skillName.getBytes(StandardCharsets.UTF_8));
-            props.remove(key);
-        }
-        try (java.io.OutputStream os = Files.newOutputStream(metaFile)) {
-            props.store(os, "Workspace Sync Metadata Updated (Aligned with Base64 Keys)");
+            Map<String, String> blManifest = getBaselineManifest(agentId, skillName);
+            String blDigest = skillDigestService.digestOf(blManifest);
+            log.info("Baseline exists. Digest: {}. Recording sync state for workspace skill path: {}", blDigest, wsSkillPath);
+            blobStore.saveManifest(workspaceManifestPath(workspaceRoot, skillName), blManifest);
+            return blDigest;
         }
+        log.warn("Baseline skill path does not exist or is not a directory: {}", blSkillPath);
+        Files.deleteIfExists(workspaceManifestPath(workspaceRoot, skillName));
+        return null;
     }
 
     public String deleteSkill(String userId, String agentId, String skillName) throws IOException {
@@ -547,27 +903,26 @@ public class SandboxService {
         storageService.writeLockedVoid(agentId, () -> {
             if (Files.exists(skillPath)) {
                 storageService.deleteRecursively(skillPath);
+                Files.deleteIfExists(baselineManifestPath(agentId, skillName));
                 log.info("Deleted skill from baseline: {}", skillName);
             }
         });
         return "Successfully deleted skill from baseline: " + skillName;
     }
 
-    private void syncFromBaselineToWorkspace(String userId, String agentId) throws IOException {
+    /**
+     * 管理员同步：先对比基线与工作区得出需要检出与删除的技能，再在有界线程池上按技能并行执行，
+     * 最后一次性写回同步元数据。各技能目录与 manifest 互不重叠，并行任务之间无需额外同步。
+     */
+    private void syncFromBaselineToWorkspace(String agentId, Path workspaceRoot) throws IOException {
         Path baselineSkillsDir = getBaselineRoot(agentId).resolve("skills");
-        Path workspaceRoot = getWorkspaceRoot(userId, agentId);
         Path workspaceSkillsDir = workspaceRoot.resolve("skills");
 
-        // 读取上次同步时间
-        Properties syncMeta = new Properties();
-        Path metaFile = workspaceRoot.resolve(META_DIR).resolve("skills_sync.properties");
-        if (Files.exists(metaFile)) {
-            try (java.io.InputStream is = Files.newInputStream(metaFile)) {
-                syncMeta.load(is);
-            }
-        }
+        // 读取上次同步状态
+        Map<String, SyncMetadataStore.SyncState> syncMeta = syncMetadataStore.load(workspaceRoot.resolve(META_DIR));
 
-        // 1. 新增与更新同步
+        // 1. 规划：新增与更新 (基线自上次同步后发生变化) 的技能需要检出
+        List<String> toCheckout = new ArrayList<>();
         if (Files.exists(baselineSkillsDir)) {
             try (DirectoryStream<Path> stream = Files.newDirectoryStream(baselineSkillsDir)) {
                 for (Path blSkill : stream) {
@@ -576,21 +931,15 @@ public class SandboxService {
                         if (skillName.equals(SKILL_CREATOR_DIR)) continue;
 
                         Path wsSkill = workspaceSkillsDir.resolve(skillName);
-                        long blMtime = Files.getLastModifiedTime(blSkill).toMillis();
 
                         if (!Files.exists(wsSkill)) {
-                            // 新增同步
                             log.info("Manager Sync: Adding new skill to workspace: {}", skillName);
-                            FileSystemUtils.copyRecursively(blSkill.toFile(), wsSkill.toFile());
-                            updateWorkspaceMetaForSkill(workspaceRoot, agentId, skillName);
+                            toCheckout.add(skillName);
                         } else {
-                            // 更新同步：基线晚于工作区修改时间才同步
-                            long wsMtime = Files.getLastModifiedTime(wsSkill).toMillis();
-                            if (blMtime > wsMtime) {
+                            String blDigest = skillDigestService.digestOf(getBaselineManifest(agentId, skillName));
+                            if (isBaselineAhead(blSkill, wsSkill, blDigest, skillName, syncMeta)) {
                                 log.info("Manager Sync: Updating skill in workspace (baseline is newer): {}", skillName);
-                                storageService.deleteRecursively(wsSkill);
-                                FileSystemUtils.copyRecursively(blSkill.toFile(), wsSkill.toFile());
-                                updateWorkspaceMetaForSkill(workspaceRoot, agentId, skillName);
+                                toCheckout.add(skillName);
                             }
                         }
                     }
@@ -598,7 +947,8 @@ public class SandboxService {
             }
         }
 
-        // 2. 删除同步：工作区存在但基线不存在的技能（且不是系统内置），自动删除
+        // 2. 规划：工作区存在但基线不存在的技能（且不是系统内置）需要删除
+        List<String> toDelete = new ArrayList<>();
         if (Files.exists(workspaceSkillsDir)) {
             try (DirectoryStream<Path> stream = Files.newDirectoryStream(workspaceSkillsDir)) {
                 for (Path wsSkill : stream) {
@@ -606,29 +956,116 @@ public class SandboxService {
                         String skillName = wsSkill.getFileName().toString();
                         if (skillName.equals(SKILL_CREATOR_DIR)) continue;
 
-                        Path blSkill = baselineSkillsDir.resolve(skillName);
-                        if (!Files.exists(blSkill)) {
+                        if (!Files.exists(baselineSkillsDir.resolve(skillName))) {
                             log.info("Manager Sync: Deleting skill from workspace (removed from baseline): {}", skillName);
-                            storageService.deleteRecursively(wsSkill);
-                            updateWorkspaceMetaForSkill(workspaceRoot, agentId, skillName);
+                            toDelete.add(skillName);
                         }
                     }
                 }
             }
         }
+        if (toCheckout.isEmpty() && toDelete.isEmpty()) return;
+
+        // 3. 并行执行，已完成技能的同步状态先收集在内存中
+        long start = System.currentTimeMillis();
+        Map<String, String> synced = Collections.synchronizedMap(new HashMap<>());
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (String skillName : toCheckout) {
+            tasks.add(() -> {
+                checkoutToWorkspace(workspaceRoot, agentId, skillName);
+                synced.put(skillName, recordSkillSync(workspaceRoot, agentId, skillName));
+                return null;
+            });
+        }
+        for (String skillName : toDelete) {
+            tasks.add(() -> {
+                Path wsSkill = workspaceSkillsDir.resolve(skillName);
+                storageService.deleteRecursively(wsSkill);
+                skillDigestService.invalidateTree(wsSkill);
+                skillCatalog.invalidate(wsSkill);
+                synced.put(skillName, recordSkillSync(workspaceRoot, agentId, skillName));
+                return null;
+            });
+        }
+        try {
+            runSyncTasks(tasks);
+        } finally {
+            // 4. 一次性提交同步元数据；部分技能失败时，已完成的技能同样记录
+            syncMetadataStore.commit(workspaceRoot.resolve(META_DIR), new HashMap<>(synced));
+        }
+        log.info("Manager Sync: {} skills checked out, {} removed in {} ms",
+                toCheckout.size(), toDelete.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 在同步线程池上执行全部任务并等待结束；任一任务失败时，在全部任务结束后抛出第一个异常。
+     */
+    private void runSyncTasks(List<Callable<Void>> tasks) throws IOException {
+        List<Future<Void>> futures;
+        try {
+            futures = syncExecutor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Manager sync interrupted");
+        }
+        Throwable failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                log.error("Manager Sync: skill task failed", e.getCause());
+                if (failure == null) failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Manager sync interrupted");
+            }
+        }
+        if (failure instanceof IOException io) throw io;
+        if (failure instanceof RuntimeException re) throw re;
+        if (failure != null) throw new IOException("Manager sync failed", failure);
     }
 
-    public void downloadSkill(String userId, String agentId, String skillName, java.io.OutputStream os) throws IOException {
+    @PreDestroy
+    public void shutdown() {
+        syncExecutor.shutdownNow();
+    }
+
+    /**
+     * 获取技能下载包。锁内只计算内容摘要，未命中缓存时再建立硬链接快照；打包与网络传输均在锁外进行。
+     * 快照与工作区共享 inode，命令可能在打包期间原地修改文件，因此打包后按快照内容重新计算摘要，不一致时丢弃重试。
+     */
+    public Path getSkillArchive(String userId, String agentId, String skillName) throws IOException {
+        Path workspaceRoot = getWorkspaceRoot(userId, agentId);
         Path skillPath = resolveLogicalPath(userId, agentId, "skills/" + skillName);
         if (!Files.exists(skillPath) || !Files.isDirectory(skillPath)) {
             throw new IOException("Skill not found: " + skillName);
         }
-        storageService.readLocked(agentId, () -> {
-            try (ZipOutputStream zos = new ZipOutputStream(os)) {
-                zipDirectory(skillPath, skillName, zos);
+        for (int attempt = 0; attempt < MAX_ARCHIVE_ATTEMPTS; attempt++) {
+            Path snapshotDir = productRoot.resolve(TMP_DIR).resolve("download-" + UUID.randomUUID());
+            try {
+                String digest = storageService.scopesLocked(agentId, lockScopes(userId, false, null), () -> {
+                    String d = skillDigestService.digest(skillPath, () -> blobStore.loadManifest(workspaceManifestPath(workspaceRoot, skillName)));
+                    if (skillArchiveCache.lookup(agentId, skillName, d) == null) {
+                        storageService.linkRecursively(skillPath, snapshotDir);
+                    }
+                    return d;
+                });
+                if (Files.exists(snapshotDir)) {
+                    Path built = skillArchiveCache.build(snapshotDir, agentId, skillName, digest, () ->
+                            skillDigestService.digestOf(blobStore.snapshot(snapshotDir, Collections.emptyMap(), false)).equals(digest));
+                    if (built != null) return built;
+                    // 内容已变化，摘要缓存失效后重新计算
+                    skillDigestService.invalidateTree(skillPath);
+                    continue;
+                }
+                Path cached = skillArchiveCache.lookup(agentId, skillName, digest);
+                // 极少数情况下缓存包恰好在锁释放后被回收，重新走一遍快照流程
+                if (cached != null) return cached;
+            } finally {
+                storageService.deleteRecursively(snapshotDir);
             }
-            return null;
-        });
+        }
+        throw new IOException("Server busy: Skill content kept changing while building the download archive. Please try again.");
     }
 
     public String installCreator(String userId, String agentId) throws IOException {
@@ -640,7 +1077,7 @@ public class SandboxService {
         String fileName = file.getOriginalFilename();
         Path targetPath = filesDir.resolve(fileName).normalize();
         
-        storageService.writeLockedVoid(agentId, () -> {
+        storageService.pathLockedVoid(agentId, LockManager.workspaceScope(userId), targetPath.toString(), () -> {
             Files.createDirectories(filesDir);
             Files.copy(file.getInputStream(), targetPath, StandardCopyOption.REPLACE_EXISTING);
         });
@@ -652,7 +1089,7 @@ public class SandboxService {
         final Path physicalRoot = resolveLogicalPath(userId, agentId, logicalPrefix);
         if (!Files.exists(physicalRoot)) return Collections.emptyList();
 
-        return storageService.readLocked(agentId, () -> {
+        return storageService.scopesLocked(agentId, lockScopes(userId, false, null), () -> {
             try (Stream<Path> stream = Files.walk(physicalRoot, 5)) {
                 return stream.parallel()
                         .filter(Files::isRegularFile)
@@ -662,35 +1099,123 @@ public class SandboxService {
         });
     }
 
-    public FileContentResult getContent(String userId, String agentId, String logicalPath, Integer offset, Integer limit) throws IOException {
+    /**
+     * 读取文件内容。fields 为 "content" 或 "lines" 时只构建对应字段，其余值返回两者。
+     * ETag 由文件身份、分页与投影参数生成，与 ifNoneMatch 匹配时不读取内容，直接返回 notModified。
+     */
+    public FileContentResult getContent(String userId, String agentId, String logicalPath, Integer offset, Integer limit,
+                                        String fields, String ifNoneMatch) throws IOException {
         Path physicalPath = resolveLogicalPath(userId, agentId, logicalPath);
         if (!Files.exists(physicalPath)) throw new IOException("Path not found: " + logicalPath);
-
-        return storageService.readLocked(agentId, () -> {
+        boolean withContent = !"lines".equals(fields);
+        boolean withLines = !"content".equals(fields);
+
+        return storageService.pathLocked(agentId, LockManager.workspaceScope(userId), physicalPath.toString(), false, () -> {
+            String etag = storageService.fileETag(physicalPath, offset + ":" + limit + ":" + withContent + ":" + withLines);
+            if (StorageService.etagMatches(ifNoneMatch, etag)) {
+                FileContentResult notModified = new FileContentResult();
+                notModified.setEtag(etag);
+                notModified.setNotModified(true);
+                return notModified;
+            }
             List<String> lines;
-            try (Stream<String> lineStream = Files.lines(physicalPath, StandardCharsets.UTF_8)) {
-                if (offset != null && limit != null) {
-                    lines = lineStream.skip(Math.max(0, offset - 1)).limit(Math.max(0, limit)).collect(Collectors.toList());
-                } else {
+            if (offset != null && limit != null) {
+                // 分页读取经行偏移索引直接定位，耗时与 offset 无关
+                lines = lineIndexService.readLines(physicalPath, offset, limit);
+            } else {
+                try (Stream<String> lineStream = Files.lines(physicalPath, StandardCharsets.UTF_8)) {
                     lines = lineStream.collect(Collectors.toList());
                 }
             }
-            return new FileContentResult(String.join("\n", lines), lines);
+            FileContentResult result = new FileContentResult(withContent ? String.join("\n", lines) : null, withLines ? lines : null);
+            result.setEtag(etag);
+            return result;
         });
     }
 
+    /**
+     * 流式输出快照内容，内存占用与文件大小无关。
+     * 未指定 offset/limit 的 text 格式直接零拷贝输出原始字节；否则逐行输出，text 以 \n 分隔，
+     * ndjson 每行输出 {"line": 行号, "text": 内容}。分页定位复用原文件的行偏移索引。
+     */
+    public void streamContent(StorageService.FileSnapshot snapshot, Integer offset, Integer limit, boolean ndjson,
+                              java.io.OutputStream os) throws IOException {
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(snapshot.getPath(), StandardOpenOption.READ)) {
+            if (!ndjson && offset == null && limit == null) {
+                java.nio.channels.WritableByteChannel out = java.nio.channels.Channels.newChannel(os);
+                long size = channel.size();
+                long position = 0;
+                while (position < size) {
+                    position += channel.transferTo(position, size - position, out);
+                }
+                return;
+            }
+            int start = offset != null ? Math.max(1, offset) : 1;
+            long remaining = limit != null ? Math.max(0, limit) : Long.MAX_VALUE;
+            BufferedReader reader = lineIndexService.openAt(snapshot.getSource(), snapshot.getPath(), channel, start);
+            java.io.Writer writer = new java.io.BufferedWriter(new java.io.OutputStreamWriter(os, StandardCharsets.UTF_8), 65536);
+            com.fasterxml.jackson.core.io.JsonStringEncoder encoder = com.fasterxml.jackson.core.io.JsonStringEncoder.getInstance();
+            String line;
+            long lineNo = start;
+            while (reader != null && remaining-- > 0 && (line = reader.readLine()) != null) {
+                if (ndjson) {
+                    writer.write("{\"line\":");
+                    writer.write(Long.toString(lineNo++));
+                    writer.write(",\"text\":\"");
+                    writer.write(encoder.quoteAsString(line));
+                    writer.write("\"}\n");
+                } else {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+            }
+            writer.flush();
+        }
+    }
+
+    /**
+     * 读取文件最后 lines 行，返回的 offset 可直接用于 follow。
+     */
+    public TailResult tail(String userId, String agentId, String logicalPath, int lines) throws IOException {
+        Path physicalPath = resolveLogicalPath(userId, agentId, logicalPath);
+        if (!Files.isRegularFile(physicalPath)) throw new IOException("File not found: " + logicalPath);
+
+        return storageService.pathLocked(agentId, LockManager.workspaceScope(userId), physicalPath.toString(), false,
+                () -> fileTailService.tail(physicalPath, lines));
+    }
+
+    /**
+     * 以 SSE 持续推送文件新增内容。命令进程的写入不经过路径锁，推送只按字节偏移读取新增部分，无需加锁。
+     */
+    public org.springframework.web.servlet.mvc.method.annotation.SseEmitter follow(String userId, String agentId, String logicalPath, Long offset) throws IOException {
+        Path physicalPath = resolveLogicalPath(userId, agentId, logicalPath);
+        if (!Files.isRegularFile(physicalPath)) throw new IOException("File not found: " + logicalPath);
+        return fileTailService.follow(physicalPath, offset);
+    }
+
+    /**
+     * 原始文件下载：路径读锁内建立硬链接快照，传输在锁外从快照进行，调用方负责关闭快照。
+     */
+    public StorageService.FileSnapshot openFileSnapshot(String userId, String agentId, String logicalPath) throws IOException {
+        Path physicalPath = resolveLogicalPath(userId, agentId, logicalPath);
+        if (!Files.isRegularFile(physicalPath)) throw new IOException("File not found: " + logicalPath);
+
+        return storageService.pathLocked(agentId, LockManager.workspaceScope(userId), physicalPath.toString(), false,
+                () -> storageService.snapshotFile(physicalPath, productRoot.resolve(TMP_DIR)));
+    }
+
     public String write(String userId, String agentId, WriteRequest request) throws IOException {
         if (request.getFilePath().startsWith("skills/" + SKILL_CREATOR_DIR)) {
             throw new RuntimeException("Security Error: Writing to skill-creator is strictly forbidden.");
         }
         validateSkillMdPlacement(request.getFilePath());
         Path physicalPath = resolveLogicalPath(userId, agentId, request.getFilePath());
-        storageService.writeLockedVoid(agentId, () -> {
+        storageService.pathLockedVoid(agentId, LockManager.workspaceScope(userId), physicalPath.toString(), () -> {
             storageService.writeBytes(physicalPath, request.getContent().getBytes(StandardCharsets.UTF_8),
                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-            if (request.getFilePath().startsWith("skills/")) {
-                touchSkillDirectory(userId, agentId, request.getFilePath());
-            }
+            skillDigestService.invalidate(physicalPath);
+            lineIndexService.invalidate(physicalPath);
+            skillCatalog.invalidate(physicalPath);
         });
         return "Written to workspace: " + request.getFilePath();
     }
@@ -704,33 +1229,118 @@ public class SandboxService {
         if (!Files.exists(physicalPath)) {
             throw new IOException("Edit Error: File not found: " + request.getFilePath());
         }
-        storageService.writeLockedVoid(agentId, () -> {
+        storageService.pathLockedVoid(agentId, LockManager.workspaceScope(userId), physicalPath.toString(), () -> {
             storageService.preciseEdit(physicalPath, request.getOldString(), request.getNewString(), request.getExpectedReplacements());
-            if (request.getFilePath().startsWith("skills/")) {
-                touchSkillDirectory(userId, agentId, request.getFilePath());
-            }
+            skillDigestService.invalidate(physicalPath);
+            lineIndexService.invalidate(physicalPath);
+            skillCatalog.invalidate(physicalPath);
         });
         return "Edited in workspace: " + request.getFilePath();
     }
 
-    private void touchSkillDirectory(String userId, String agentId, String logicalPath) {
-        try {
-            String[] parts = logicalPath.split("/");
-            if (parts.length >= 2 && parts[0].equals("skills")) {
-                String skillName = parts[1];
-                Path skillDir = getWorkspaceRoot(userId, agentId).resolve("skills").resolve(skillName);
-                if (Files.exists(skillDir) && Files.isDirectory(skillDir)) {
-                    Files.setLastModifiedTime(skillDir, java.nio.file.attribute.FileTime.from(java.time.Instant.now()));
-                    log.info("Touched skill directory to update mtime: {}", skillDir);
+    /**
+     * 批量写入/编辑：先校验全部操作并解析路径 (工作区只检查一次)，再在一次工作区排他锁内整体应用。
+     * 同一文件上的多个操作合并为一次读改写；任一操作失败时所有文件保持原状。
+     */
+    public String batch(String userId, String agentId, BatchRequest request) throws IOException {
+        List<BatchOperation> operations = request.getOperations();
+        if (operations == null || operations.isEmpty()) {
+            throw new RuntimeException("Validation Error: Batch must contain at least one operation.");
+        }
+        if (operations.size() > MAX_BATCH_OPERATIONS) {
+            throw new RuntimeException("Validation Error: Batch exceeds the limit of " + MAX_BATCH_OPERATIONS + " operations.");
+        }
+
+        Map<Path, List<StorageService.FileChange>> changes = new LinkedHashMap<>();
+        Path workspaceRoot = null;
+        for (int i = 0; i < operations.size(); i++) {
+            BatchOperation op = operations.get(i);
+            int index = i + 1;
+            String logicalPath = op.getFilePath();
+            if (logicalPath == null) {
+                throw new RuntimeException("Security Error: Path cannot be null (operation " + index + ").");
+            }
+            if (logicalPath.startsWith("skills/" + SKILL_CREATOR_DIR)) {
+                throw new RuntimeException("Security Error: Modifying skill-creator is strictly forbidden.");
+            }
+            validateSkillMdPlacement(logicalPath);
+            validateWorkspacePrefix(logicalPath);
+
+            StorageService.FileChange change;
+            if ("write".equals(op.getOp())) {
+                if (op.getContent() == null) {
+                    throw new RuntimeException("Validation Error: 'content' is required for write (operation " + index + ").");
                 }
+                change = StorageService.FileChange.write(index, op.getContent());
+            } else if ("edit".equals(op.getOp())) {
+                change = StorageService.FileChange.edit(index, op.getOldString(), op.getNewString(), op.getExpectedReplacements());
+            } else {
+                throw new RuntimeException("Validation Error: Unsupported operation '" + op.getOp() + "' (operation " + index + "), expected 'write' or 'edit'.");
             }
-        } catch (Exception e) {
-            log.warn("Failed to touch skill directory: {}", logicalPath, e);
+
+            if (workspaceRoot == null) workspaceRoot = getWorkspaceRoot(userId, agentId);
+            Path physicalPath = resolveWorkspacePath(workspaceRoot, logicalPath);
+            if (Files.isDirectory(physicalPath)) {
+                throw new RuntimeException("Validation Error: Target is a directory: " + logicalPath + " (operation " + index + ").");
+            }
+            changes.computeIfAbsent(physicalPath, k -> new ArrayList<>()).add(change);
         }
+
+        storageService.scopesLockedVoid(agentId, lockScopes(userId, true, null), () -> {
+            try {
+                storageService.applyBatch(changes);
+            } finally {
+                for (Path path : changes.keySet()) {
+                    skillDigestService.invalidate(path);
+                    lineIndexService.invalidate(path);
+                    skillCatalog.invalidate(path);
+                }
+            }
+        });
+        return "Batch applied: " + operations.size() + " operations on " + changes.size() + " files";
     }
 
     public ExecutionResult execute(String userId, String agentId, CommandRequest request) throws Exception {
         Path workspaceRoot = getWorkspaceRoot(userId, agentId);
+        String command = prepareCommand(userId, agentId, workspaceRoot, request);
+        ExecutionResult result;
+        try {
+            result = skillExecutor.executeInDir(agentId, workspaceRoot, command);
+        } finally {
+            commandFinished(workspaceRoot);
+        }
+        
+        // --- 物理压缩处理 (A/A -> A)：只检查新出现的技能与命令中涉及的技能 ---
+        skillFlattener.flattenChanged(workspaceRoot.resolve("skills"), mentionedSkills(command));
+        // 命令可能任意修改技能目录，技能列表下次读取时按 stat 重新校验，摘要重新遍历
+        skillDigestService.invalidateTree(workspaceRoot.resolve("skills"));
+        skillCatalog.invalidate(workspaceRoot.resolve("skills"));
+        
+        return result;
+    }
+
+    /**
+     * 异步执行：完成与同步执行相同的校验后立即返回任务 ID，结束后同样整理工作区技能目录。
+     */
+    public JobStatus submitJob(String userId, String agentId, CommandRequest request) throws IOException {
+        Path workspaceRoot = getWorkspaceRoot(userId, agentId);
+        String command = prepareCommand(userId, agentId, workspaceRoot, request);
+        try {
+            ProcessBuilder pb = skillExecutor.prepare(workspaceRoot, command);
+            return executionJobService.submit(userId, agentId, request.getCommand(), pb, () -> {
+                commandFinished(workspaceRoot);
+                skillFlattener.flattenChanged(workspaceRoot.resolve("skills"), mentionedSkills(command));
+                skillDigestService.invalidateTree(workspaceRoot.resolve("skills"));
+                skillCatalog.invalidate(workspaceRoot.resolve("skills"));
+            });
+        } catch (IOException | RuntimeException e) {
+            // 任务未启动，onFinish 不会执行
+            commandFinished(workspaceRoot);
+            throw e;
+        }
+    }
+
+    private String prepareCommand(String userId, String agentId, Path workspaceRoot, CommandRequest request) throws IOException {
         String command = request.getCommand().trim();
         String creatorLogical = "skills/" + SKILL_CREATOR_DIR;
         if (command.contains(creatorLogical)) {
@@ -738,19 +1348,17 @@ public class SandboxService {
             command = command.replace(creatorLogical, creatorPhysical);
             log.info("Command redirected for skill-creator: {}", command);
         }
-        ExecutionResult result = skillExecutor.executeInDir(workspaceRoot, command);
-        
-        // --- 物理压缩处理 (A/A -> A) ---
-        flattenAllSkills(workspaceRoot.resolve("skills"));
-        
-        return result;
+        isolateWorkspace(userId, agentId, workspaceRoot);
+        return command;
     }
 
     public String deleteFile(String userId, String agentId, String logicalPath) throws IOException {
         Path physicalPath = resolveLogicalPath(userId, agentId, logicalPath);
-        storageService.writeLockedVoid(agentId, () -> {
+        storageService.scopesLockedVoid(agentId, lockScopes(userId, true, null), () -> {
             if (Files.exists(physicalPath)) {
                 storageService.deleteRecursively(physicalPath);
+                skillDigestService.invalidateTree(physicalPath);
+                skillCatalog.invalidate(physicalPath);
             }
         });
         return "Deleted from workspace: " + logicalPath;
@@ -767,108 +1375,84 @@ public class SandboxService {
         }
     }
 
-    private void scanAndValidateSkills(ZipInputStream zis, Set<String> skills, Set<String> skillsWithMd) throws IOException {
-        ZipEntry entry;
-        while ((entry = zis.getNextEntry()) != null) {
-            String name = entry.getName().replace('\\', '/');
-            // 忽略 macOS 自动生成的冗余目录
-            if (name.startsWith("__MACOSX/") || name.contains("/.__")) {
-                zis.closeEntry();
-                continue;
-            }
-            int slash = name.indexOf('/');
-            if (slash != -1) {
-                String skillName = name.substring(0, slash);
-                skills.add(skillName);
-                if (name.equals(skillName + "/SKILL.md")) skillsWithMd.add(skillName);
-            } else if (entry.isDirectory()) {
-                skills.add(name.replace("/", ""));
-            }
-            zis.closeEntry();
-        }
-    }
-
-    private void extractZip(ZipInputStream zis, Path targetDir, String rootToSkip) throws IOException {
-        ZipEntry entry;
-        while ((entry = zis.getNextEntry()) != null) {
-            String name = entry.getName().replace('\\', '/');
-            // 忽略 macOS 自动生成的冗余目录
-            if (name.startsWith("__MACOSX/") || name.contains("/.__")) {
-                zis.closeEntry();
+    /**
+     * 回收空闲工作区：从访问索引中取出已超过 TTL 的工作区，每轮至多 max-per-run 个。
+     * 删除前持有工作区 X 锁并确认期间没有新的访问。
+     */
+    @Scheduled(fixedDelayString = "${app.workspace.cleanup.interval-ms:60000}")
+    public void cleanupWorkspaces() {
+        List<WorkspaceAccessTracker.Expired> expired = workspaceAccessTracker.pollExpired(cleanupMaxPerRun);
+        if (expired.isEmpty()) return;
+        log.info("Cleaning up {} idle workspaces", expired.size());
+        for (WorkspaceAccessTracker.Expired workspace : expired) {
+            Path userDir;
+            try {
+                userDir = workspaceDirOf(workspace);
+            } catch (RuntimeException e) {
+                log.warn("Dropping invalid workspace access record: agentId={}, userId={}", workspace.agentId(), workspace.userId(), e);
+                workspaceAccessTracker.remove(workspace);
                 continue;
             }
-            if (rootToSkip != null) {
-                if (name.equals(rootToSkip + "/")) continue;
-                if (name.startsWith(rootToSkip + "/")) {
-                    name = name.substring(rootToSkip.length() + 1);
+            try {
+                boolean deleted = storageService.scopesLocked(workspace.agentId(), lockScopes(workspace.userId(), true, null), () -> {
+                    if (!workspaceAccessTracker.isStillExpired(workspace)) return false;
+                    log.info("Cleaning up idle workspace: {}", userDir);
+                    isolatedWorkspaces.remove(userDir);
+                    try {
+                        storageService.deleteRecursively(userDir);
+                    } finally {
+                        skillDigestService.invalidateTree(userDir);
+                        skillCatalog.invalidate(userDir.resolve("skills"));
+                        syncMetadataStore.forget(userDir.resolve(META_DIR));
+                    }
+                    return true;
+                });
+                if (deleted) {
+                    workspaceAccessTracker.remove(workspace);
+                } else {
+                    workspaceAccessTracker.requeue(workspace);
                 }
+            } catch (IOException | RuntimeException e) {
+                log.error("Error during workspace cleanup: {}", userDir, e);
+                workspaceAccessTracker.requeue(workspace);
             }
-            if (name.isEmpty()) continue;
-
-            Path entryPath = targetDir.resolve(name).normalize();
-            if (entry.isDirectory()) Files.createDirectories(entryPath);
-            else {
-                Files.createDirectories(entryPath.getParent());
-                Files.copy(zis, entryPath, StandardCopyOption.REPLACE_EXISTING);
-            }
-            zis.closeEntry();
         }
     }
 
-    private void zipDirectory(Path folder, String parentFolder, ZipOutputStream zos) throws IOException {
-        try (Stream<Path> stream = Files.walk(folder)) {
-            Iterator<Path> it = stream.iterator();
-            while (it.hasNext()) {
-                Path path = it.next();
-                if (Files.isDirectory(path)) continue;
-                String zipEntryName = parentFolder + "/" + folder.relativize(path).toString().replace('\\', '/');
-                zos.putNextEntry(new ZipEntry(zipEntryName));
-                Files.copy(path, zos);
-                zos.closeEntry();
-            }
+    /**
+     * 到期记录对应的工作区目录。索引可能被外部修改，只接受 workspaces 目录的直接子目录。
+     */
+    private Path workspaceDirOf(WorkspaceAccessTracker.Expired workspace) {
+        validateAgentId(workspace.agentId());
+        validateUserId(workspace.userId());
+        Path workspacesDir = productRoot.resolve(workspace.agentId()).resolve(WORKSPACES_DIR).normalize();
+        Path userDir = workspacesDir.resolve(workspace.userId()).normalize();
+        storageService.validateScope(userDir, workspacesDir);
+        if (!workspacesDir.equals(userDir.getParent())) {
+            throw new RuntimeException("Security Error: Access out of scope. Path: " + userDir);
         }
+        return userDir;
     }
 
-    private SkillMetadata parseSkillMd(Path skillPath) {
-        Path mdPath = skillPath.resolve("SKILL.md");
-        SkillMetadata meta = new SkillMetadata();
-        meta.setName(skillPath.getFileName().toString());
-        meta.setDescription("No description.");
-        if (Files.exists(mdPath)) {
-            try (BufferedReader reader = Files.newBufferedReader(mdPath, StandardCharsets.UTF_8)) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String trimmed = line.trim().toLowerCase();
-                    if (trimmed.startsWith("name:")) meta.setName(line.substring(line.indexOf(":") + 1).trim());
-                    if (trimmed.startsWith("description:")) meta.setDescription(line.substring(line.indexOf(":") + 1).trim());
-                }
-            } catch (IOException ignored) {}
-        }
-        return meta;
-    }
-
-    @Scheduled(cron = "0 0 * * * ?")
-    public void cleanupWorkspaces() {
-        log.info("Starting scheduled workspace cleanup...");
+    /**
+     * 以目录修改时间补登访问索引中没有的工作区，已有记录不受影响。
+     */
+    private void seedWorkspaceAccess() {
         try (DirectoryStream<Path> agentStream = Files.newDirectoryStream(productRoot)) {
             for (Path agentDir : agentStream) {
                 Path workspacesDir = agentDir.resolve(WORKSPACES_DIR);
-                if (Files.exists(workspacesDir)) {
-                    try (DirectoryStream<Path> userStream = Files.newDirectoryStream(workspacesDir)) {
-                        for (Path userDir : userStream) {
-                            if (Files.isDirectory(userDir)) {
-                                long lastAccess = Files.getLastModifiedTime(userDir).toMillis();
-                                if (System.currentTimeMillis() - lastAccess > 24 * 3600 * 1000) {
-                                    log.info("Cleaning up idle workspace: {}", userDir);
-                                    storageService.deleteRecursively(userDir);
-                                }
-                            }
+                if (!Files.isDirectory(workspacesDir)) continue;
+                try (DirectoryStream<Path> userStream = Files.newDirectoryStream(workspacesDir)) {
+                    for (Path userDir : userStream) {
+                        if (Files.isDirectory(userDir)) {
+                            workspaceAccessTracker.seed(agentDir.getFileName().toString(), userDir.getFileName().toString(),
+                                    Files.getLastModifiedTime(userDir).toMillis());
                         }
                     }
                 }
             }
         } catch (IOException e) {
-            log.error("Error during workspace cleanup", e);
+            log.error("Failed to seed workspace access index", e);
         }
     }
 }
@@ -0,0 +1,405 @@
+package com.example.filesecbox.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 技能下载压缩包缓存：按 (agent, 技能名, 内容摘要) 缓存已打包的 zip，内容变化即对应新的缓存键，旧包按访问时间过期回收。
+ * 缓存不跨 agent 共享；打包完成后须经调用方校验内容仍与摘要一致才会发布。
+ * 打包时各条目并行压缩、按顺序写出，已压缩格式的文件直接 STORED 存储。
+ */
+@Service
+public class SkillArchiveCache {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SkillArchiveCache.class);
+
+    private static final String CACHE_DIR = ".cache/archives";
+    // 超过该大小的条目不在内存中压缩，由写出线程流式处理
+    private static final long IN_MEMORY_LIMIT = 8L * 1024 * 1024;
+    // 超出 ZIP32 限制时回退为 ZipOutputStream (自动使用 ZIP64)
+    private static final long ZIP32_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP32_MAX_ENTRIES = 0xFFFF;
+    private static final Set<String> STORED_EXTENSIONS = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "jar", "whl", "egg",
+            "png", "jpg", "jpeg", "gif", "webp", "ico", "mp3", "mp4", "m4a", "ogg", "mov", "avi", "webm",
+            "woff", "woff2", "pdf", "docx", "xlsx", "pptx");
+
+    @Value("${app.product.root.win:D:/webIde/product}")
+    private String productRootWin;
+
+    @Value("${app.product.root.linux:/webIde/product}")
+    private String productRootLinux;
+
+    // 并行压缩的最大并发条目数
+    @Value("${app.zip.compress.concurrency:4}")
+    private int compressConcurrency;
+
+    // 缓存包在最后一次访问后的保留时长 (小时)
+    @Value("${app.download.cache.ttl-hours:24}")
+    private long ttlHours;
+
+    private Path cacheRoot;
+
+    @PostConstruct
+    public void init() throws IOException {
+        boolean isWin = System.getProperty("os.name").toLowerCase().contains("win");
+        Path productRoot = Paths.get(isWin ? productRootWin : productRootLinux).toAbsolutePath().normalize();
+        this.cacheRoot = productRoot.resolve(CACHE_DIR);
+        Files.createDirectories(cacheRoot);
+    }
+
+    /**
+     * 命中时返回缓存包并刷新访问时间，否则返回 null。
+     */
+    public Path lookup(String agentId, String skillName, String digest) {
+        Path archive = archivePath(agentId, skillName, digest);
+        try {
+            Files.setLastModifiedTime(archive, FileTime.fromMillis(System.currentTimeMillis()));
+            return archive;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 缓存包对应的内容摘要 (即文件名去掉 .zip 后缀)。
+     */
+    public static String digestOf(Path archive) {
+        String name = archive.getFileName().toString();
+        return name.substring(0, name.length() - ".zip".length());
+    }
+
+    /**
+     * 将快照目录打包为缓存包，条目名以 skillName/ 为前缀。并发构建同一个包时以最后完成者为准，内容相同。
+     * 打包写完后调用 verify，返回 false (快照内容在打包期间已不等于 digest) 时丢弃并返回 null。
+     */
+    public Path build(Path snapshotDir, String agentId, String skillName, String digest,
+                      StorageService.IOCallable<Boolean> verify) throws IOException {
+        Path archive = archivePath(agentId, skillName, digest);
+        Files.createDirectories(archive.getParent());
+        Path tmp = archive.resolveSibling(archive.getFileName() + ".tmp-" + UUID.randomUUID());
+        try {
+            List<Path> files = new ArrayList<>();
+            try (Stream<Path> stream = Files.walk(snapshotDir)) {
+                stream.filter(Files::isRegularFile).sorted().forEach(files::add);
+            }
+            long total = 0;
+            for (Path f : files) total += Files.size(f);
+            if (total >= ZIP32_LIMIT || files.size() >= ZIP32_MAX_ENTRIES) {
+                writeSequential(snapshotDir, skillName, files, tmp);
+            } else {
+                writeParallel(snapshotDir, skillName, files, tmp);
+            }
+            if (!verify.call()) {
+                log.warn("Skill content changed while building download archive, discarding: {}, digest: {}", skillName, digest);
+                return null;
+            }
+            Files.move(tmp, archive, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        log.info("Built download archive for skill: {}, digest: {}", skillName, digest);
+        return archive;
+    }
+
+    /**
+     * 回收超过保留时长未被访问的缓存包。
+     */
+    @Scheduled(cron = "${app.download.cache.cleanup-cron:0 0 * * * ?}")
+    public void evictExpired() {
+        long cutoff = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(ttlHours);
+        int[] removed = {0};
+        try (Stream<Path> stream = Files.walk(cacheRoot, 2)) {
+            stream.filter(Files::isRegularFile).forEach(p -> {
+                try {
+                    if (Files.getLastModifiedTime(p).toMillis() < cutoff) {
+                        Files.delete(p);
+                        removed[0]++;
+                    }
+                } catch (IOException e) {
+                    log.warn("Failed to evict cached archive: {}", p, e);
+                }
+            });
+        } catch (IOException e) {
+            log.error("Error during archive cache cleanup", e);
+        }
+        log.info("Archive cache cleanup finished, removed: {}", removed[0]);
+    }
+
+    private Path archivePath(String agentId, String skillName, String digest) {
+        String nameKey = HexFormat.of().formatHex(sha256().digest((agentId + "\u0000" + skillName).getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+        return cacheRoot.resolve(nameKey).resolve(digest + ".zip");
+    }
+
+    private void writeSequential(Path dir, String skillName, List<Path> files, Path out) throws IOException {
+        try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(out))) {
+            for (Path f : files) {
+                zos.putNextEntry(new ZipEntry(entryName(dir, skillName, f)));
+                Files.copy(f, zos);
+                zos.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * 各条目在虚拟线程中并行压缩，写出线程按顺序消费结果；在途条目数受窗口限制以约束内存占用。
+     */
+    private void writeParallel(Path dir, String skillName, List<Path> files, Path out) throws IOException {
+        int window = Math.max(1, compressConcurrency);
+        Deque<Future<Entry>> pending = new ArrayDeque<>();
+        List<Entry> written = new ArrayList<>(files.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+             FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int next = 0;
+            try {
+                while (next < files.size() && pending.size() < window) {
+                    pending.add(submit(executor, dir, skillName, files.get(next++)));
+                }
+                while (!pending.isEmpty()) {
+                    Entry entry = pending.poll().get();
+                    if (next < files.size()) {
+                        pending.add(submit(executor, dir, skillName, files.get(next++)));
+                    }
+                    writeEntry(channel, entry);
+                    written.add(entry.withoutData());
+                }
+            } catch (ExecutionException e) {
+                pending.forEach(f -> f.cancel(true));
+                if (e.getCause() instanceof IOException ioe) throw ioe;
+                throw new IOException("Failed to compress archive entry", e.getCause());
+            } catch (InterruptedException e) {
+                pending.forEach(f -> f.cancel(true));
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Archive build interrupted");
+            } catch (IOException | RuntimeException e) {
+                pending.forEach(f -> f.cancel(true));
+                throw e;
+            }
+            writeCentralDirectory(channel, written);
+        }
+    }
+
+    private Future<Entry> submit(ExecutorService executor, Path dir, String skillName, Path file) {
+        String name = entryName(dir, skillName, file);
+        return executor.submit(() -> prepare(file, name));
+    }
+
+    /**
+     * 读取并压缩单个条目。大文件只计算 CRC，由写出线程直接流式压缩或拷贝。
+     */
+    private Entry prepare(Path file, String name) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        boolean stored = isPrecompressed(name);
+        Entry entry = new Entry(file, name, attrs.size(), dosTime(attrs.lastModifiedTime().toMillis()));
+        if (attrs.size() > IN_MEMORY_LIMIT) {
+            entry.crc = crcOf(file);
+            entry.method = stored ? ZipEntry.STORED : ZipEntry.DEFLATED;
+            return entry;
+        }
+        byte[] raw = Files.readAllBytes(file);
+        CRC32 crc = new CRC32();
+        crc.update(raw);
+        entry.crc = crc.getValue();
+        entry.size = raw.length;
+        if (!stored && raw.length > 0) {
+            byte[] deflated = deflate(raw);
+            // 压缩后不变小的内容也按 STORED 存储
+            if (deflated.length < raw.length) {
+                entry.method = ZipEntry.DEFLATED;
+                entry.data = deflated;
+                entry.compressedSize = deflated.length;
+                return entry;
+            }
+        }
+        entry.method = ZipEntry.STORED;
+        entry.data = raw;
+        entry.compressedSize = raw.length;
+        return entry;
+    }
+
+    private void writeEntry(FileChannel channel, Entry entry) throws IOException {
+        entry.offset = channel.position();
+        if (entry.data != null) {
+            writeFully(channel, localHeader(entry));
+            writeFully(channel, ByteBuffer.wrap(entry.data));
+            return;
+        }
+        // 大文件：先写占位头，写完数据后回填压缩大小
+        writeFully(channel, localHeader(entry));
+        long dataStart = channel.position();
+        if (entry.method == ZipEntry.STORED) {
+            try (FileChannel in = FileChannel.open(entry.file, StandardOpenOption.READ)) {
+                long pos = 0;
+                while (pos < entry.size) {
+                    pos += in.transferTo(pos, entry.size - pos, channel);
+                }
+            }
+        } else {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try (InputStream is = Files.newInputStream(entry.file)) {
+                byte[] in = new byte[65536];
+                byte[] buf = new byte[65536];
+                int n;
+                while ((n = is.read(in)) != -1) {
+                    deflater.setInput(in, 0, n);
+                    while (!deflater.needsInput()) {
+                        int len = deflater.deflate(buf);
+                        writeFully(channel, ByteBuffer.wrap(buf, 0, len));
+                    }
+                }
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int len = deflater.deflate(buf);
+                    writeFully(channel, ByteBuffer.wrap(buf, 0, len));
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        long end = channel.position();
+        entry.compressedSize = end - dataStart;
+        channel.position(entry.offset);
+        writeFully(channel, localHeader(entry));
+        channel.position(end);
+    }
+
+    private void writeCentralDirectory(FileChannel channel, List<Entry> entries) throws IOException {
+        long start = channel.position();
+        for (Entry e : entries) {
+            byte[] name = e.name.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer b = ByteBuffer.allocate(46 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+            b.putInt(0x02014b50).putShort((short) 20).putShort((short) 20).putShort((short) 0x0800)
+                    .putShort((short) e.method).putInt(e.dosTime).putInt((int) e.crc)
+                    .putInt((int) e.compressedSize).putInt((int) e.size)
+                    .putShort((short) name.length).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0).putInt(0).putInt((int) e.offset).put(name);
+            writeFully(channel, b.flip());
+        }
+        long size = channel.position() - start;
+        ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                .putShort((short) entries.size()).putShort((short) entries.size())
+                .putInt((int) size).putInt((int) start).putShort((short) 0);
+        writeFully(channel, end.flip());
+    }
+
+    private ByteBuffer localHeader(Entry e) {
+        byte[] name = e.name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(0x04034b50).putShort((short) 20).putShort((short) 0x0800).putShort((short) e.method)
+                .putInt(e.dosTime).putInt((int) e.crc).putInt((int) e.compressedSize).putInt((int) e.size)
+                .putShort((short) name.length).putShort((short) 0).put(name);
+        return b.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream(Math.max(64, raw.length / 2));
+            byte[] buf = new byte[65536];
+            while (!deflater.finished()) {
+                bos.write(buf, 0, deflater.deflate(buf));
+            }
+            return bos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static long crcOf(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[65536];
+        try (InputStream is = Files.newInputStream(file)) {
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                crc.update(buf, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static boolean isPrecompressed(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot != -1 && STORED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    private static String entryName(Path dir, String skillName, Path file) {
+        return skillName + "/" + dir.relativize(file).toString().replace('\\', '/');
+    }
+
+    /**
+     * MS-DOS 格式的修改时间 (高 16 位日期、低 16 位时间)，早于 1980 年的时间取 1980-01-01。
+     */
+    private static int dosTime(long millis) {
+        LocalDateTime t = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (t.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        int date = ((t.getYear() - 1980) << 9) | (t.getMonthValue() << 5) | t.getDayOfMonth();
+        int time = (t.getHour() << 11) | (t.getMinute() << 5) | (t.getSecond() >> 1);
+        return (date << 16) | time;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Entry {
+        private final Path file;
+        private final String name;
+        private final int dosTime;
+        private long size;
+        private long crc;
+        private int method;
+        private long compressedSize;
+        private long offset;
+        private byte[] data;
+
+        Entry(Path file, String name, long size, int dosTime) {
+            this.file = file;
+            this.name = name;
+            this.size = size;
+            this.dosTime = dosTime;
+        }
+
+        Entry withoutData() {
+            data = null;
+            return this;
+        }
+    }
+}
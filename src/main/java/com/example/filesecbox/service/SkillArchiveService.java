@@ -0,0 +1,206 @@
+package com.example.filesecbox.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * 技能压缩包处理：上传内容先落盘，再通过 ZipFile 随机访问中央目录，避免整包读入堆内存与重复解压。
+ */
+@Service
+public class SkillArchiveService {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SkillArchiveService.class);
+
+    private static final Charset GBK = Charset.forName("GBK");
+
+    // 并行解压的最大并发写入数，<= 1 时顺序解压
+    @Value("${app.zip.extract.concurrency:8}")
+    private int extractConcurrency;
+
+    /**
+     * 将输入流落盘到 dir 下的临时文件。
+     */
+    public Path spool(InputStream is, Path dir) throws IOException {
+        Path tmp = Files.createTempFile(dir, "archive-", ".zip");
+        try {
+            Files.copy(is, tmp, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        return tmp;
+    }
+
+    /**
+     * 打开压缩包。设置了 UTF-8 标志位 (EFS) 的条目总是按 UTF-8 解码；
+     * 未设置标志位的条目先按 UTF-8 解析，中央目录中存在非法 UTF-8 名称时整体回退为 GBK (Windows 压缩工具的默认编码)。
+     * 回退只重新解析中央目录，不会重复解压数据。
+     */
+    public ZipFile open(Path archive) throws IOException {
+        try {
+            return new ZipFile(archive.toFile(), StandardCharsets.UTF_8);
+        } catch (ZipException | IllegalArgumentException e) {
+            log.info("Archive entry names are not valid UTF-8, falling back to GBK: {}", archive);
+            try {
+                return new ZipFile(archive.toFile(), GBK);
+            } catch (ZipException ex) {
+                throw new IOException("Failed to process ZIP with GBK fallback", ex);
+            }
+        }
+    }
+
+    /**
+     * 识别 zip 内是否存在唯一的根目录，存在时返回其名称。
+     */
+    public String detectCommonRoot(ZipFile zip) {
+        String commonRoot = null;
+        boolean first = true;
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName().replace('\\', '/');
+            if (name.isEmpty() || name.equals("/")) continue;
+            int slashIdx = name.indexOf('/');
+            if (slashIdx == -1) {
+                if (!entry.isDirectory()) return null; // 根目录下有文件
+                if (first) { commonRoot = name; first = false; }
+                else if (!name.equals(commonRoot)) return null;
+            } else {
+                String root = name.substring(0, slashIdx);
+                if (first) { commonRoot = root; first = false; }
+                else if (!root.equals(commonRoot)) return null;
+            }
+        }
+        return commonRoot;
+    }
+
+    /**
+     * 仅读取中央目录，收集包含的顶层技能目录。
+     */
+    public void scanSkills(ZipFile zip, Set<String> skills, Set<String> skillsWithMd) {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName().replace('\\', '/');
+            // 忽略 macOS 自动生成的冗余目录
+            if (isIgnored(name)) continue;
+            int slash = name.indexOf('/');
+            if (slash != -1) {
+                String skillName = name.substring(0, slash);
+                skills.add(skillName);
+                if (name.equals(skillName + "/SKILL.md")) skillsWithMd.add(skillName);
+            } else if (entry.isDirectory()) {
+                skills.add(name.replace("/", ""));
+            }
+        }
+    }
+
+    /**
+     * 解压到目标目录，rootToSkip 不为空时剥离该根目录。拒绝任何解析到目标目录之外的条目。
+     * 先校验全部条目并建好目录骨架，再由虚拟线程并行解压写入文件，并发数由信号量限制。
+     */
+    public void extract(ZipFile zip, Path targetDir, String rootToSkip) throws IOException {
+        Path root = targetDir.toAbsolutePath().normalize();
+        Set<Path> dirs = new TreeSet<>();
+        // 同名条目以最后一个为准，与顺序解压的覆盖语义一致
+        Map<Path, ZipEntry> files = new LinkedHashMap<>();
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entryName(entry, rootToSkip);
+            if (name == null) continue;
+
+            Path entryPath = root.resolve(name).normalize();
+            if (entryPath.equals(root)) continue;
+            if (!entryPath.startsWith(root)) {
+                throw new RuntimeException("Security Error: ZIP entry out of scope: " + entry.getName());
+            }
+            if (entry.isDirectory()) {
+                dirs.add(entryPath);
+            } else {
+                dirs.add(entryPath.getParent());
+                files.remove(entryPath);
+                files.put(entryPath, entry);
+            }
+        }
+        Files.createDirectories(root);
+        for (Path dir : dirs) {
+            Files.createDirectories(dir);
+        }
+
+        if (extractConcurrency <= 1 || files.size() <= 1) {
+            for (Map.Entry<Path, ZipEntry> e : files.entrySet()) {
+                extractEntry(zip, e.getValue(), e.getKey());
+            }
+            return;
+        }
+
+        Semaphore permits = new Semaphore(extractConcurrency);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Map.Entry<Path, ZipEntry> e : files.entrySet()) {
+                permits.acquire();
+                if (failure.get() != null) {
+                    permits.release();
+                    break;
+                }
+                executor.execute(() -> {
+                    try {
+                        extractEntry(zip, e.getValue(), e.getKey());
+                    } catch (Exception ex) {
+                        failure.compareAndSet(null, ex);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("ZIP extraction interrupted");
+        }
+
+        Exception ex = failure.get();
+        if (ex instanceof IOException ioe) throw ioe;
+        if (ex instanceof RuntimeException re) throw re;
+        if (ex != null) throw new IOException("Failed to extract ZIP entry", ex);
+    }
+
+    private void extractEntry(ZipFile zip, ZipEntry entry, Path target) throws IOException {
+        try (InputStream is = zip.getInputStream(entry)) {
+            Files.copy(is, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 归一化条目名称并剥离根目录；应忽略的条目返回 null。
+     */
+    private String entryName(ZipEntry entry, String rootToSkip) {
+        String name = entry.getName().replace('\\', '/');
+        if (isIgnored(name)) return null;
+        if (rootToSkip != null) {
+            if (name.equals(rootToSkip + "/")) return null;
+            if (name.startsWith(rootToSkip + "/")) {
+                name = name.substring(rootToSkip.length() + 1);
+            }
+        }
+        return name.isEmpty() ? null : name;
+    }
+
+    private boolean isIgnored(String name) {
+        return name.startsWith("__MACOSX/") || name.contains("/.__");
+    }
+}
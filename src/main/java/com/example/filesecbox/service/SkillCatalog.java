@@ -0,0 +1,204 @@
+package com.example.filesecbox.service;
+
+import com.example.filesecbox.model.SkillMetadata;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+/**
+ * 技能元数据目录：按 skills 目录缓存每个技能 SKILL.md 解析出的 name / description，
+ * 以 SKILL.md 的 (inode, size, mtime) 作为版本标识。本服务内的写入路径通过 invalidate 标记失效，
+ * 外部修改在 revalidate-ms 到期后按 stat 结果补检；其余情况下列表只是一次内存读取。
+ */
+@Service
+public class SkillCatalog {
+
+    private static final String SKILL_MD = "SKILL.md";
+
+    @Value("${app.skill.catalog.cache-size:4096}")
+    private int cacheSize;
+
+    @Value("${app.skill.catalog.revalidate-ms:30000}")
+    private long revalidateMillis;
+
+    private Map<Path, Catalog> catalogs;
+    private Map<Path, Entry> skills;
+
+    @PostConstruct
+    public void init() {
+        this.catalogs = lruMap();
+        this.skills = lruMap();
+    }
+
+    /**
+     * 列出 skills 目录下所有包含 SKILL.md 的技能 (目录名 -> 元数据)，顺序与目录遍历一致。返回的对象可由调用方修改。
+     */
+    public Map<String, SkillMetadata> list(Path skillsDir) {
+        Catalog catalog = catalogs.computeIfAbsent(skillsDir, k -> new Catalog());
+        synchronized (catalog) {
+            if (catalog.stale || System.currentTimeMillis() - catalog.validatedAt >= revalidateMillis) {
+                catalog.revalidate(skillsDir);
+            }
+            Map<String, SkillMetadata> result = new LinkedHashMap<>();
+            catalog.entries.forEach((skillName, entry) -> result.put(skillName, entry.toMetadata()));
+            return result;
+        }
+    }
+
+    /**
+     * 单个技能目录的元数据 (如全局 skill-creator)，缓存规则同上。
+     */
+    public SkillMetadata describe(Path skillDir) {
+        Entry entry = skills.get(skillDir);
+        if (entry == null || entry.stale || System.currentTimeMillis() - entry.validatedAt >= revalidateMillis) {
+            entry = load(skillDir, entry);
+            skills.put(skillDir, entry);
+        }
+        return entry.toMetadata();
+    }
+
+    /**
+     * path 发生了变化 (文件、技能目录或整个 skills 目录)：包含它的目录与技能在下次读取时重新校验。
+     */
+    public void invalidate(Path path) {
+        for (Path p = path; p != null; p = p.getParent()) {
+            Catalog catalog = catalogs.get(p);
+            if (catalog != null) catalog.stale = true;
+            Entry entry = skills.get(p);
+            if (entry != null) entry.stale = true;
+        }
+    }
+
+    private static Entry load(Path skillDir, Entry previous) {
+        Path mdPath = skillDir.resolve(SKILL_MD);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(mdPath, BasicFileAttributes.class);
+        } catch (IOException e) {
+            attrs = null;
+        }
+        if (previous != null && previous.sameVersion(attrs)) {
+            previous.stale = false;
+            previous.validatedAt = System.currentTimeMillis();
+            return previous;
+        }
+        return parseSkillMd(skillDir, attrs);
+    }
+
+    private static Entry parseSkillMd(Path skillPath, BasicFileAttributes attrs) {
+        Path mdPath = skillPath.resolve(SKILL_MD);
+        String name = skillPath.getFileName().toString();
+        String description = "No description.";
+        if (attrs != null) {
+            try (BufferedReader reader = Files.newBufferedReader(mdPath, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String trimmed = line.trim().toLowerCase();
+                    if (trimmed.startsWith("name:")) name = line.substring(line.indexOf(":") + 1).trim();
+                    if (trimmed.startsWith("description:")) description = line.substring(line.indexOf(":") + 1).trim();
+                }
+            } catch (IOException ignored) {}
+        }
+        return new Entry(name, description, attrs);
+    }
+
+    private <V> Map<Path, V> lruMap() {
+        return Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, V> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    /**
+     * 单个 skills 目录的缓存：目录自身的 (inode, mtime)、全部条目名，以及其中包含 SKILL.md 的技能。
+     */
+    private static final class Catalog {
+        private volatile boolean stale = true;
+        private long validatedAt;
+        private Object dirKey;
+        private FileTime dirModified;
+        private List<String> names = List.of();
+        private Map<String, Entry> entries = new LinkedHashMap<>();
+
+        void revalidate(Path skillsDir) {
+            // 先清除标记：校验期间发生的失效会保留到下一次读取
+            stale = false;
+            validatedAt = System.currentTimeMillis();
+            BasicFileAttributes dirAttrs;
+            try {
+                dirAttrs = Files.readAttributes(skillsDir, BasicFileAttributes.class);
+            } catch (IOException e) {
+                dirKey = null;
+                names = List.of();
+                entries = new LinkedHashMap<>();
+                return;
+            }
+            // 目录本身未变化时条目集合不变，只需逐个比对 SKILL.md
+            if (!Objects.equals(dirKey, dirAttrs.fileKey()) || !dirAttrs.lastModifiedTime().equals(dirModified)) {
+                List<String> listed = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(skillsDir)) {
+                    for (Path skillEntry : stream) {
+                        listed.add(skillEntry.getFileName().toString());
+                    }
+                } catch (IOException e) {
+                    stale = true;
+                    return;
+                }
+                names = listed;
+                dirKey = dirAttrs.fileKey();
+                dirModified = dirAttrs.lastModifiedTime();
+            }
+            Map<String, Entry> refreshed = new LinkedHashMap<>();
+            for (String skillName : names) {
+                Entry entry = load(skillsDir.resolve(skillName), entries.get(skillName));
+                if (entry.exists()) refreshed.put(skillName, entry);
+            }
+            entries = refreshed;
+        }
+    }
+
+    /**
+     * 一个技能的解析结果及其 SKILL.md 版本；SKILL.md 不存在时 fileKey 与 modified 为空。
+     */
+    private static final class Entry {
+        private final String name;
+        private final String description;
+        private final Object fileKey;
+        private final long size;
+        private final FileTime modified;
+        private volatile boolean stale;
+        private volatile long validatedAt = System.currentTimeMillis();
+
+        Entry(String name, String description, BasicFileAttributes attrs) {
+            this.name = name;
+            this.description = description;
+            this.fileKey = attrs != null ? attrs.fileKey() : null;
+            this.size = attrs != null ? attrs.size() : -1;
+            this.modified = attrs != null ? attrs.lastModifiedTime() : null;
+        }
+
+        boolean exists() {
+            return modified != null;
+        }
+
+        boolean sameVersion(BasicFileAttributes attrs) {
+            if (attrs == null) return !exists();
+            return exists() && Objects.equals(fileKey, attrs.fileKey()) && size == attrs.size()
+                    && modified.equals(attrs.lastModifiedTime());
+        }
+
+        SkillMetadata toMetadata() {
+            return new SkillMetadata(name, description, null, null);
+        }
+    }
+}
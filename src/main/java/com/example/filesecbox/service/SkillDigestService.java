@@ -0,0 +1,212 @@
+package com.example.filesecbox.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * 技能内容摘要：对技能目录下每个文件的 SHA-256 按相对路径排序后再做一次 SHA-256，作为技能的 Merkle 根。
+ * 每个技能目录的摘要整体缓存，由写入路径 (写入、编辑、命令执行、检出、删除等) 通过 invalidate / invalidateTree
+ * 标记失效；未被标记的技能在 revalidate-ms 内直接复用，不再遍历目录。需要重新遍历时，文件哈希按 (inode, size, mtime)
+ * 缓存，只有 stat 发生变化或被显式失效的文件才会重新读取内容。
+ */
+@Service
+public class SkillDigestService {
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Value("${app.skill.digest.cache-size:200000}")
+    private int cacheSize;
+
+    // 缓存摘要的技能目录数
+    @Value("${app.skill.digest.skill-cache-size:4096}")
+    private int skillCacheSize;
+
+    // 未被标记失效的技能摘要最长复用时间，用于发现服务之外的修改
+    @Value("${app.skill.digest.revalidate-ms:300000}")
+    private long revalidateMillis;
+
+    private Map<Path, FileStamp> fileHashes;
+    private Map<Path, SkillEntry> skillDigests;
+
+    @PostConstruct
+    public void init() {
+        this.fileHashes = Collections.synchronizedMap(new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, FileStamp> eldest) {
+                return size() > cacheSize;
+            }
+        });
+        this.skillDigests = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, SkillEntry> eldest) {
+                return size() > skillCacheSize;
+            }
+        });
+    }
+
+    /**
+     * 计算目录的 manifest (相对路径 -> 哈希)，格式与 BlobStore 一致。
+     * hint 中记录的 blob 若仍与文件是同一 inode，直接复用其哈希。
+     */
+    public Map<String, String> manifestOf(Path dir, Map<String, String> hint) throws IOException {
+        Map<String, String> manifest = new TreeMap<>();
+        if (!Files.isDirectory(dir)) return manifest;
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                if (!d.equals(dir)) {
+                    manifest.put(relative(dir, d) + "/", "dir");
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile()) {
+                    manifest.put(relative(dir, file), fileHash(file, attrs, hint.get(relative(dir, file))));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return manifest;
+    }
+
+    public String digest(Path dir, Map<String, String> hint) throws IOException {
+        return digest(dir, () -> hint);
+    }
+
+    /**
+     * 技能目录的摘要。缓存有效时直接返回，hint 只在需要重新遍历时才加载。
+     */
+    public String digest(Path dir, StorageService.IOCallable<Map<String, String>> hint) throws IOException {
+        Path key = dir.toAbsolutePath().normalize();
+        SkillEntry entry = skillDigests.get(key);
+        if (entry != null && entry.digest != null && !entry.stale && System.currentTimeMillis() - entry.validatedAt < revalidateMillis) {
+            return entry.digest;
+        }
+        // 先登记新条目再遍历：遍历期间发生的失效会保留到下一次读取
+        SkillEntry fresh = new SkillEntry();
+        skillDigests.put(key, fresh);
+        try {
+            fresh.digest = digestOf(manifestOf(dir, hint.call()));
+        } catch (IOException | RuntimeException e) {
+            skillDigests.remove(key, fresh);
+            throw e;
+        }
+        return fresh.digest;
+    }
+
+    /**
+     * manifest 的 Merkle 根：相同内容的基线 manifest 与工作区目录得到相同摘要。
+     */
+    public String digestOf(Map<String, String> manifest) {
+        MessageDigest md = sha256();
+        for (Map.Entry<String, String> e : new TreeMap<>(manifest).entrySet()) {
+            md.update(e.getKey().getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(e.getValue().getBytes(StandardCharsets.UTF_8));
+            md.update((byte) '\n');
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    /**
+     * 由写入路径调用：同一毫秒内的同尺寸改写无法通过 stat 识别，需显式失效。
+     */
+    public void invalidate(Path file) {
+        Path key = file.toAbsolutePath().normalize();
+        fileHashes.remove(key);
+        for (Path p = key; p != null; p = p.getParent()) {
+            SkillEntry entry = skillDigests.get(p);
+            if (entry != null) entry.stale = true;
+        }
+    }
+
+    /**
+     * dir 下的内容可能被任意修改 (命令执行、检出、删除或整个工作区被回收)：其中及其上层的技能摘要全部失效，
+     * 其中文件的哈希缓存一并移除 (被回收的工作区不再占用缓存，同尺寸同毫秒的改写也不会命中旧值)。
+     */
+    public void invalidateTree(Path dir) {
+        Path key = dir.toAbsolutePath().normalize();
+        invalidate(key);
+        synchronized (fileHashes) {
+            fileHashes.keySet().removeIf(p -> p.startsWith(key));
+        }
+        synchronized (skillDigests) {
+            for (Map.Entry<Path, SkillEntry> e : skillDigests.entrySet()) {
+                if (e.getKey().startsWith(key)) e.getValue().stale = true;
+            }
+        }
+    }
+
+    private String fileHash(Path file, BasicFileAttributes attrs, String blobHint) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        FileStamp cached = fileHashes.get(key);
+        if (cached != null && cached.matches(attrs, BlobStore.mode(file))) {
+            return cached.hash;
+        }
+        String hash = null;
+        if (blobHint != null && attrs.fileKey() != null) {
+            try {
+                Object blobKey = Files.readAttributes(blobStore.blobPath(blobHint), BasicFileAttributes.class).fileKey();
+                if (attrs.fileKey().equals(blobKey)) hash = blobHint;
+            } catch (IOException ignored) {}
+        }
+        if (hash == null) {
+            hash = blobStore.key(file);
+        }
+        fileHashes.put(key, new FileStamp(attrs, BlobStore.mode(file), hash));
+        return hash;
+    }
+
+    private static String relative(Path root, Path p) {
+        return root.relativize(p).toString().replace('\\', '/');
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class SkillEntry {
+        private final long validatedAt = System.currentTimeMillis();
+        private volatile boolean stale;
+        private volatile String digest;
+    }
+
+    private static final class FileStamp {
+        private final Object fileKey;
+        private final long size;
+        private final long mtime;
+        // chmod 不改变 mtime，但会改变 blob 键
+        private final Integer mode;
+        private final String hash;
+
+        FileStamp(BasicFileAttributes attrs, Integer mode, String hash) {
+            this.fileKey = attrs.fileKey();
+            this.size = attrs.size();
+            this.mtime = attrs.lastModifiedTime().toMillis();
+            this.mode = mode;
+            this.hash = hash;
+        }
+
+        boolean matches(BasicFileAttributes attrs, Integer mode) {
+            return Objects.equals(fileKey, attrs.fileKey()) && size == attrs.size()
+                    && mtime == attrs.lastModifiedTime().toMillis() && Objects.equals(this.mode, mode);
+        }
+    }
+}
@@ -1,19 +1,19 @@
 package com.example.filesecbox.service;
 
 import com.example.filesecbox.model.ExecutionResult;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Service
 public class SkillExecutor {
@@ -30,55 +30,206 @@ public class SkillExecutor {
             "mkdir", "touch", "cp", "mv", "rm", "tee", "find", "chmod", "xargs", "curl"
     ));
 
+    // skill-creator 目录下禁止的写操作指令
+    private static final Set<String> WRITE_COMMANDS = Set.of("mkdir", "touch", "cp", "mv", "rm", "tee", "chmod");
+
+    private static final Set<String> SAFE_ENV_VARS = Set.of("PATH", "LANG", "LC_ALL", "HOME", "USER", "PWD");
+
+    // 引号内的内容 OR 看起来像路径/文件名的连续字符（支持 Unicode）
+    private static final Pattern PATH_TOKEN = Pattern.compile("\"([^\"]+)\"|([^\\s><|&]+)");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
     private static final int TIMEOUT_SECONDS = 300; // 5分钟超时
 
     private static final String SKILL_CREATOR_DIR = "skill-creator";
 
-    public ExecutionResult executeInDir(Path workingDir, String commandLine) throws Exception {
-        boolean isWin = System.getProperty("os.name").toLowerCase().contains("win");
-        Charset sysCharset = isWin ? Charset.forName("GBK") : StandardCharsets.UTF_8;
+    private static final String TMP_DIR = ".tmp";
+
+    // 校验结论缓存的最大条目数
+    @Value("${app.exec.validation-cache-size:1024}")
+    private int validationCacheSize;
+
+    @Autowired
+    private ProcessSupervisor processSupervisor;
+
+    @Autowired
+    private OutputCapture outputCapture;
+
+    @Autowired
+    private PythonWorkerPool pythonWorkerPool;
+
+    private Roots linuxRoots;
+    private Roots winRoots;
+    private Map<String, String> sanitizedEnv;
+    private Map<String, Verdict> verdictCache;
+
+    @PostConstruct
+    public void init() {
+        linuxRoots = new Roots(productRootLinux);
+        winRoots = new Roots(productRootWin);
+        Map<String, String> env = new HashMap<>(System.getenv());
+        env.keySet().removeIf(key -> !SAFE_ENV_VARS.contains(key));
+        env.put("PATH", "/usr/local/bin:/usr/bin:/bin");
+        sanitizedEnv = Map.copyOf(env);
+        verdictCache = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+                return size() > validationCacheSize;
+            }
+        });
+    }
+
+    // permit 只用于在结束时归还执行名额
+    @SuppressWarnings("try")
+    public ExecutionResult executeInDir(String agentId, Path workingDir, String commandLine) throws Exception {
+        ProcessBuilder pb = prepare(workingDir, commandLine);
+        List<String> pythonArgv = pythonWorkerPool.isEnabled() ? pythonWorkerPool.parse(commandLine) : null;
+        Path scratchDir = scratchDir();
+        try (ProcessSupervisor.Permit permit = processSupervisor.admit(agentId)) {
+            return processSupervisor.run(scratchDir, (stdout, stderr) -> {
+                // 简单的 python 脚本调用优先交给预热进程，不可用时回退为 bash -c
+                if (pythonArgv != null) {
+                    Integer exitCode = pythonWorkerPool.run(agentId, workingDir, pythonArgv, pb.environment(),
+                            scratchDir, stdout, stderr, TIMEOUT_SECONDS);
+                    if (exitCode != null) return exitCode;
+                }
+                return processSupervisor.await(processSupervisor.start(pb, stdout, stderr), TIMEOUT_SECONDS);
+            }, (stdout, stderr, exitCode) -> readResult(workingDir, stdout, stderr, exitCode));
+        } catch (ProcessSupervisor.StartFailedException e) {
+            return new ExecutionResult("", "Failed to start process: " + e.getMessage(), 127);
+        }
+    }
+
+    /**
+     * 完成全部安全校验并构建进程，但不启动。同步执行与异步任务共用。
+     */
+    public ProcessBuilder prepare(Path workingDir, String commandLine) {
+        boolean isWin = isWindows();
+        Verdict verdict = validate(workingDir, commandLine, isWin);
+
+        // 自动创建命令参数中涉及的目录 (不纳入缓存，每次按实际状态处理)
+        for (Path dir : verdict.dirsToCreate) {
+            try {
+                if (!java.nio.file.Files.exists(dir)) {
+                    java.nio.file.Files.createDirectories(dir);
+                }
+            } catch (Exception ignored) {}
+        }
 
+        // 5. 构建进程：通过 Shell 包装以支持 > | >> 等操作
+        ProcessBuilder pb = new ProcessBuilder();
+        if (isWin) {
+            pb.command("cmd", "/c", commandLine);
+        } else {
+            pb.command("bash", "-c", commandLine);
+        }
+        pb.directory(workingDir.toFile());
+        pb.redirectErrorStream(false);
+
+        // 6. 环境净化 (Linux)
+        if (!isWin) {
+            Map<String, String> env = pb.environment();
+            env.clear();
+            env.putAll(sanitizedEnv);
+        }
+
+        return pb;
+    }
+
+    /**
+     * 校验结果只取决于 (工作目录, 命令形状)，按此缓存；缓存命中时跳过路径解析与逐项校验。
+     */
+    private Verdict validate(Path workingDir, String commandLine, boolean isWin) {
+        String key = shapeKey(workingDir, commandLine, isWin);
+        Verdict verdict = verdictCache.get(key);
+        if (verdict == null) {
+            try {
+                verdict = computeVerdict(workingDir, commandLine, isWin);
+            } catch (RuntimeException e) {
+                verdict = new Verdict(e.getMessage(), List.of());
+            }
+            verdictCache.put(key, verdict);
+        }
+        if (verdict.error != null) {
+            throw new RuntimeException(verdict.error);
+        }
+        return verdict;
+    }
+
+    /**
+     * 命令形状：首个指令、影响校验的标记 (".."、重定向) 以及可能被当作路径的参数 (含 / \\ 或 .)。
+     * 其余参数 (普通文本、数字、选项) 与空白不影响校验结论，不计入缓存键，因此只有参数不同的命令共用同一结论。
+     */
+    private String shapeKey(Path workingDir, String commandLine, boolean isWin) {
+        String trimmed = commandLine.trim();
+        String firstCmd = firstCommand(trimmed);
+        StringBuilder key = new StringBuilder().append(workingDir).append('\0').append(firstCmd).append('\0')
+                .append(commandLine.contains("..") ? 'T' : '-').append(commandLine.contains(">") ? 'R' : '-');
+        appendPathTokens(key, trimmed.substring(firstCmd.length()).trim());
+        // 物理路径校验扫描整条命令，仅在其中出现产品根目录时才会生效
+        if (commandLine.replace("\\", "/").toLowerCase().contains(roots(isWin).normRoot)) {
+            key.append('\0').append('|');
+            appendPathTokens(key, commandLine);
+        }
+        return key.toString();
+    }
+
+    private static void appendPathTokens(StringBuilder key, String text) {
+        Matcher matcher = PATH_TOKEN.matcher(text);
+        while (matcher.find()) {
+            String token = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+            if (token.indexOf('/') >= 0 || token.indexOf('\\') >= 0 || token.indexOf('.') >= 0) {
+                key.append('\0').append(token);
+            }
+        }
+    }
+
+    private static String firstCommand(String trimmed) {
+        String firstCmd = WHITESPACE.split(trimmed, 2)[0];
+        if (firstCmd.startsWith("\"") && firstCmd.endsWith("\"")) {
+            firstCmd = firstCmd.substring(1, firstCmd.length() - 1);
+        }
+        return firstCmd;
+    }
+
+    private Verdict computeVerdict(Path workingDir, String commandLine, boolean isWin) {
         // 1. 安全校验：禁止路径穿越
         if (commandLine.contains("..")) {
             throw new RuntimeException("Security Error: Path traversal '..' is strictly forbidden.");
         }
 
         // 2. 指令白名单校验：仅校验首个指令
-        String firstCmd = commandLine.trim().split("\\s+")[0];
-        if (firstCmd.startsWith("\"") && firstCmd.endsWith("\"")) {
-            firstCmd = firstCmd.substring(1, firstCmd.length() - 1);
-        }
+        String trimmed = commandLine.trim();
+        String firstCmd = firstCommand(trimmed);
         if (!ALLOWED_COMMANDS.contains(firstCmd)) {
             throw new RuntimeException("Security Error: Command '" + firstCmd + "' is not allowed.");
         }
 
         // 3. 强制路径前缀校验：命令中涉及的任何路径/文件名必须以 skills/ 或 files/ 开头
-        String argsPart = commandLine.trim().substring(firstCmd.length()).trim();
+        List<Path> dirsToCreate = new ArrayList<>();
+        String argsPart = trimmed.substring(firstCmd.length()).trim();
         if (!argsPart.isEmpty()) {
             // 增强正则：支持中文、空格、引号包裹的路径解析
             // 匹配模式：引号内的内容 OR 看起来像路径/文件名的连续字符（支持 Unicode）
-            java.util.regex.Matcher matcher = java.util.regex.Pattern.compile("\"([^\"]+)\"|([^\\s><|&]+)").matcher(argsPart);
+            Matcher matcher = PATH_TOKEN.matcher(argsPart);
             while (matcher.find()) {
                 String potentialPath = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
-                if (potentialPath.length() < 3 || potentialPath.matches("^-+.*") || potentialPath.matches("^[\\d.]+$")) continue;
-                
+                if (potentialPath.length() < 3 || potentialPath.startsWith("-") || isNumeric(potentialPath)) continue;
+
                 if (potentialPath.contains("/") || potentialPath.contains("\\") || potentialPath.contains(".")) {
                     String normalized = potentialPath.replace('\\', '/').toLowerCase();
-                    String productRoot = isWin ? productRootWin : productRootLinux;
-                    String normGlobalCreator = Paths.get(productRoot).resolve(SKILL_CREATOR_DIR).toAbsolutePath().toString().replace("\\", "/").toLowerCase();
 
                     // --- 新增：SKILL.md 深度拦截逻辑 ---
                     if (normalized.endsWith("/skill.md") || normalized.equals("skill.md")) {
-                        String[] parts = normalized.split("/");
                         // 必须是 skills/{name}/SKILL.md 格式，长度为 3
-                        if (!normalized.startsWith("skills/") || parts.length != 3) {
+                        if (!normalized.startsWith("skills/") || normalized.split("/").length != 3) {
                             throw new RuntimeException("Security Error: 'SKILL.md' is a system reserved file. You can only create/edit it at the root of a skill (e.g., skills/my_skill/SKILL.md).");
                         }
                     }
 
                     boolean isLogicPath = normalized.startsWith("skills/") || normalized.startsWith("files/") ||
                                         normalized.equals("skills") || normalized.equals("files");
-                    boolean isGlobalCreatorPath = normalized.startsWith(normGlobalCreator);
+                    boolean isGlobalCreatorPath = normalized.startsWith(roots(isWin).normGlobalCreator);
 
                     if (!isLogicPath && !isGlobalCreatorPath) {
                         throw new RuntimeException("Security Error: Path '" + potentialPath + "' is out of operable scope. Must start with 'skills/' or 'files/'.");
@@ -86,12 +237,11 @@ public class SkillExecutor {
 
                     // --- 新增：针对 skill-creator 的写保护 ---
                     if (isGlobalCreatorPath) {
-                        Set<String> writeCmds = new HashSet<>(Arrays.asList("mkdir", "touch", "cp", "mv", "rm", "tee", "chmod"));
-                        if (writeCmds.contains(firstCmd)) {
+                        if (WRITE_COMMANDS.contains(firstCmd)) {
                             throw new RuntimeException("Security Error: Modification of 'skill-creator' is strictly forbidden. Command '" + firstCmd + "' blocked.");
                         }
                         // 检查重定向符号
-                        if (commandLine.contains(">") || commandLine.contains(">>")) {
+                        if (commandLine.contains(">")) {
                             throw new RuntimeException("Security Error: Redirecting output to 'skill-creator' is strictly forbidden.");
                         }
                     }
@@ -101,14 +251,10 @@ public class SkillExecutor {
                         String cleanPath = potentialPath.replace('\\', '/');
                         // 仅当路径包含 Windows 盘符（如 C:）时跳过 resolve，避免 InvalidPathException
                         // 对于以 / 开头的路径，在 Windows 下 resolve 会被视为当前盘符下的绝对路径，在 Linux 下是绝对路径，通常是安全的
-                        if (cleanPath.contains(":")) {
-                            // 包含盘符的绝对路径不执行自动创建目录逻辑
-                        } else {
+                        if (!cleanPath.contains(":")) {
                             Path targetPath = workingDir.resolve(cleanPath).normalize();
                             Path dirToCreate = cleanPath.contains(".") ? targetPath.getParent() : targetPath;
-                            if (dirToCreate != null && !java.nio.file.Files.exists(dirToCreate)) {
-                                java.nio.file.Files.createDirectories(dirToCreate);
-                            }
+                            if (dirToCreate != null) dirsToCreate.add(dirToCreate);
                         }
                     } catch (Exception ignored) {}
                 }
@@ -117,93 +263,95 @@ public class SkillExecutor {
 
         // 4. 参数路径校验（物理层）
         validatePathSecurity(commandLine, workingDir, isWin);
+        return new Verdict(null, List.copyOf(dirsToCreate));
+    }
 
-        // 4. 构建进程：通过 Shell 包装以支持 > | >> 等操作
-        ProcessBuilder pb = new ProcessBuilder();
-        if (isWin) {
-            pb.command("cmd", "/c", commandLine);
-        } else {
-            pb.command("bash", "-c", commandLine);
-        }
-        pb.directory(workingDir.toFile());
-        pb.redirectErrorStream(false);
-
-        // 5. 环境净化 (Linux)
-        Map<String, String> env = pb.environment();
-        if (!isWin) {
-            Set<String> safeEnvVars = new HashSet<>(Arrays.asList("PATH", "LANG", "LC_ALL", "HOME", "USER", "PWD"));
-            env.keySet().removeIf(key -> !safeEnvVars.contains(key));
-            env.put("PATH", "/usr/local/bin:/usr/bin:/bin");
-        }
-
-        Process process;
-        try {
-            process = pb.start();
-        } catch (IOException e) {
-            return new ExecutionResult("", "Failed to start process: " + e.getMessage(), 127);
-        }
+    /**
+     * 汇总重定向到文件的输出。workspaceRoot 不为空时，超出保留上限的完整输出转存到该工作区。
+     */
+    public ExecutionResult readResult(Path workspaceRoot, Path stdout, Path stderr, int exitCode) throws IOException {
+        return outputCapture.collect(workspaceRoot, stdout, stderr, exitCode, outputCharset());
+    }
 
-        StringBuilder stdoutBuilder = new StringBuilder();
-        StringBuilder stderrBuilder = new StringBuilder();
-        Thread outThread = new Thread(() -> captureStream(process.getInputStream(), stdoutBuilder, sysCharset));
-        Thread errThread = new Thread(() -> captureStream(process.getErrorStream(), stderrBuilder, sysCharset));
-        outThread.start();
-        errThread.start();
+    public Charset outputCharset() {
+        return isWindows() ? Charset.forName("GBK") : StandardCharsets.UTF_8;
+    }
 
-        boolean finished = process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS);
-        if (!finished) {
-            process.destroyForcibly();
-            throw new RuntimeException("Execution Timeout: Process killed after " + TIMEOUT_SECONDS + " seconds.");
-        }
-        
-        outThread.join(1000);
-        errThread.join(1000);
+    public Path scratchDir() {
+        return Paths.get(isWindows() ? productRootWin : productRootLinux).resolve(TMP_DIR);
+    }
 
-        return new ExecutionResult(
-            stdoutBuilder.toString().trim(),
-            stderrBuilder.toString().trim(),
-            process.exitValue()
-        );
+    public int getTimeoutSeconds() {
+        return TIMEOUT_SECONDS;
     }
 
-    private void captureStream(InputStream is, StringBuilder builder, Charset charset) {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, charset))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                builder.append(line).append("\n");
-            }
-        } catch (IOException ignored) {}
+    private boolean isWindows() {
+        return System.getProperty("os.name").toLowerCase().contains("win");
     }
 
     private void validatePathSecurity(String arg, Path workingDir, boolean isWin) {
-        String productRoot = isWin ? productRootWin : productRootLinux;
-        Path rootPath = Paths.get(productRoot).toAbsolutePath().normalize();
-        String normRoot = rootPath.toString().replace("\\", "/").toLowerCase();
+        Roots roots = roots(isWin);
         String normArg = arg.replace("\\", "/").toLowerCase();
-        
-        if (normArg.contains(normRoot)) {
+
+        if (normArg.contains(roots.normRoot)) {
             // 提取指令中的所有潜在路径片段进行校验
-            java.util.regex.Matcher matcher = java.util.regex.Pattern.compile("\"([^\"]+)\"|([^\\s><|&]+)").matcher(arg);
+            Matcher matcher = PATH_TOKEN.matcher(arg);
+            Path normalizedWorkingDir = workingDir.toAbsolutePath().normalize();
             while (matcher.find()) {
                 String potentialPath = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
                 String normPotential = potentialPath.replace('\\', '/').toLowerCase();
-                
-                if (normPotential.contains(normRoot)) {
-                    try {
-                        Path targetPath = Paths.get(potentialPath).toAbsolutePath().normalize();
-                        Path creatorPath = rootPath.resolve(SKILL_CREATOR_DIR).normalize();
-                        
-                        boolean inWorkspace = targetPath.startsWith(workingDir.toAbsolutePath().normalize());
-                        boolean inGlobalTools = targetPath.startsWith(creatorPath);
-                        
-                        if (!inWorkspace && !inGlobalTools) {
-                            throw new RuntimeException("Security Error: Accessing path outside workspace scope: " + potentialPath);
-                        }
-                    } catch (Exception e) {
-                        if (e instanceof RuntimeException) throw (RuntimeException) e;
+
+                if (normPotential.contains(roots.normRoot)) {
+                    Path targetPath = Paths.get(potentialPath).toAbsolutePath().normalize();
+                    boolean inWorkspace = targetPath.startsWith(normalizedWorkingDir);
+                    boolean inGlobalTools = targetPath.startsWith(roots.creatorPath);
+
+                    if (!inWorkspace && !inGlobalTools) {
+                        throw new RuntimeException("Security Error: Accessing path outside workspace scope: " + potentialPath);
                     }
                 }
             }
         }
     }
+
+    private static boolean isNumeric(String token) {
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) return false;
+        }
+        return true;
+    }
+
+    private Roots roots(boolean isWin) {
+        return isWin ? winRoots : linuxRoots;
+    }
+
+    /**
+     * 预先解析的产品根目录与 skill-creator 目录。
+     */
+    private static final class Roots {
+        private final String normRoot;
+        private final Path creatorPath;
+        private final String normGlobalCreator;
+
+        Roots(String productRoot) {
+            Path rootPath = Paths.get(productRoot).toAbsolutePath().normalize();
+            this.normRoot = rootPath.toString().replace("\\", "/").toLowerCase();
+            this.creatorPath = rootPath.resolve(SKILL_CREATOR_DIR).normalize();
+            this.normGlobalCreator = Paths.get(productRoot).resolve(SKILL_CREATOR_DIR).toAbsolutePath().toString().replace("\\", "/").toLowerCase();
+        }
+    }
+
+    /**
+     * 校验结论：error 非空表示拒绝；dirsToCreate 为需要自动创建的目录。
+     */
+    private static final class Verdict {
+        private final String error;
+        private final List<Path> dirsToCreate;
+
+        Verdict(String error, List<Path> dirsToCreate) {
+            this.error = error;
+            this.dirsToCreate = dirsToCreate;
+        }
+    }
 }
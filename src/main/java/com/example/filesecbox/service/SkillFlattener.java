@@ -0,0 +1,160 @@
+package com.example.filesecbox.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+/**
+ * 技能目录物理压缩 (A/A -> A)：技能目录没有 SKILL.md 且仅包含一个同名子目录时，将子目录提升一级。
+ * 每个 skills 目录记录上次检查时的 (inode, mtime) 与各条目的 inode。skills 目录本身未变化时不再列目录，
+ * 只检查调用方指出的技能 (如命令中出现的 skills/X)。有条目新增或被替换 (inode 变化) 时，只检查这些条目。
+ */
+@Service
+public class SkillFlattener {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SkillFlattener.class);
+
+    @Autowired
+    private StorageService storageService;
+
+    // 记录快照的 skills 目录数 (每个工作区与基线各一个)
+    @Value("${app.skill.flatten.cache-size:4096}")
+    private int cacheSize;
+
+    private Map<Path, Snapshot> snapshots;
+
+    @PostConstruct
+    public void init() {
+        this.snapshots = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Snapshot> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    /**
+     * 全量检查 skills 目录下的每个技能，不记录快照。用于临时目录 (如上传暂存区)。
+     */
+    public void flattenAll(Path skillsDir) {
+        if (!Files.exists(skillsDir)) return;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(skillsDir)) {
+            for (Path skillEntry : stream) {
+                if (Files.isDirectory(skillEntry)) {
+                    flattenSkill(skillEntry, skillEntry.getFileName().toString());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to scan skills for flattening: {}", skillsDir, e);
+        }
+    }
+
+    /**
+     * 按变化检查：只处理自上次检查以来新出现 (或被替换) 的技能，以及 mentioned 中列出的技能。
+     * mentioned 为 null 表示无法确定影响范围，退化为全量检查。首次检查某个目录时同样全量检查。
+     */
+    public void flattenChanged(Path skillsDir, Collection<String> mentioned) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(skillsDir, BasicFileAttributes.class);
+        } catch (IOException e) {
+            snapshots.remove(skillsDir);
+            return;
+        }
+        Snapshot previous = snapshots.get(skillsDir);
+        if (mentioned != null && previous != null && previous.matches(attrs)) {
+            for (String skillName : mentioned) {
+                flattenSkill(skillsDir.resolve(skillName), skillName);
+            }
+            return;
+        }
+
+        // 在列目录之前取 stat：列目录期间发生的变化会在下一次检查时被发现
+        Map<String, Object> entries = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(skillsDir)) {
+            for (Path skillEntry : stream) {
+                String skillName = skillEntry.getFileName().toString();
+                BasicFileAttributes entryAttrs;
+                try {
+                    entryAttrs = Files.readAttributes(skillEntry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                Object entryKey = entryAttrs.fileKey();
+                entries.put(skillName, entryKey);
+                // 没有 fileKey 的文件系统无法识别替换，按已变化处理
+                boolean changed = mentioned == null || previous == null || entryKey == null
+                        || !entryKey.equals(previous.entries.get(skillName)) || mentioned.contains(skillName);
+                if (changed && entryAttrs.isDirectory()) {
+                    flattenSkill(skillEntry, skillName);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to scan skills for flattening: {}", skillsDir, e);
+            snapshots.remove(skillsDir);
+            return;
+        }
+        snapshots.put(skillsDir, new Snapshot(attrs.fileKey(), attrs.lastModifiedTime(), entries));
+    }
+
+    /**
+     * 检查并压缩单个技能目录。
+     */
+    public void flattenSkill(Path skillDir, String skillName) {
+        Path nested = isRedundantDirectory(skillDir, skillName);
+        if (nested != null) {
+            try {
+                log.info("Physically flattening redundant directory: {}/{}", skillName, skillName);
+                Path tempDir = skillDir.getParent().resolve(skillName + "_tmp_" + System.currentTimeMillis());
+                Files.move(nested, tempDir);
+                storageService.deleteRecursively(skillDir);
+                Files.move(tempDir, skillDir);
+            } catch (IOException e) {
+                log.error("Failed to physically flatten directory: {}", skillDir, e);
+            }
+        }
+    }
+
+    private Path isRedundantDirectory(Path dir, String expectedName) {
+        try {
+            if (!Files.exists(dir) || !Files.isDirectory(dir)) return null;
+            // 判定标准：一级目录没有 SKILL.md，且仅包含唯一的同名子目录 (符合 "A下面没有任何内容")
+            if (Files.exists(dir.resolve("SKILL.md"))) return null;
+            Path nested = dir.resolve(expectedName);
+            if (!Files.exists(nested) || !Files.isDirectory(nested)) return null;
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                Iterator<Path> it = stream.iterator();
+                if (it.hasNext()) {
+                    it.next(); // 跳过第一个 (即 nested)
+                    if (it.hasNext()) return null; // 还有其他东西，不视为冗余
+                }
+            }
+            return nested;
+        } catch (Exception ignored) {}
+        return null;
+    }
+
+    private static final class Snapshot {
+        private final Object fileKey;
+        private final FileTime modified;
+        // 条目名 -> 检查时的 fileKey
+        private final Map<String, Object> entries;
+
+        Snapshot(Object fileKey, FileTime modified, Map<String, Object> entries) {
+            this.fileKey = fileKey;
+            this.modified = modified;
+            this.entries = entries;
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return Objects.equals(fileKey, attrs.fileKey()) && modified.equals(attrs.lastModifiedTime());
+        }
+    }
+}
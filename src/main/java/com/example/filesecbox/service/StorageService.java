@@ -1,82 +1,118 @@
 package com.example.filesecbox.service;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.util.FileSystemUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 通用文件处理类：负责底层的物理 I/O 操作、安全校验以及全局并发锁管理。
- * 锁粒度：agentId。
+ * 锁粒度：agent -> scope (baseline / 用户工作区) -> path，由 LockManager 分层管理。
  */
 @Service
 public class StorageService {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(StorageService.class);
-    private final Map<String, ReadWriteLock> locks = new ConcurrentHashMap<>();
+    private static final long READ_TIMEOUT_MILLIS = 5000;
+    private static final long WRITE_TIMEOUT_MILLIS = 10000;
+    private static final int EDIT_BUFFER_SIZE = 256 * 1024;
+    // 批量修改时不超过该大小的文件在内存中完成全部操作，更大的文件逐个操作流式改写到临时文件
+    private static final long BATCH_IN_MEMORY_LIMIT = 16L * 1024 * 1024;
 
-    private ReadWriteLock getLock(String agentId) {
-        return locks.computeIfAbsent(agentId, k -> new ReentrantReadWriteLock());
-    }
+    @Autowired
+    private LockManager lockManager;
 
+    /**
+     * agent 级共享锁：与该 agent 下的任何写操作互斥。
+     */
     public <T> T readLocked(String agentId, IOCallable<T> action) throws IOException {
-        ReadWriteLock lock = getLock(agentId);
-        try {
-            if (lock.readLock().tryLock(5, java.util.concurrent.TimeUnit.SECONDS)) {
-                try {
-                    return action.call();
-                } finally {
-                    lock.readLock().unlock();
-                }
-            } else {
-                log.warn("Read lock timeout for agent: {}", agentId);
-                throw new IOException("Server busy: Read operation timed out. Please try again.");
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new IOException("Operation interrupted.");
-        }
+        return locked(agentId, false, () -> lockManager.lockAgent(agentId, false, READ_TIMEOUT_MILLIS), action);
     }
 
+    /**
+     * agent 级排他锁：仅用于基线变更。
+     */
     public <T> T writeLocked(String agentId, IOCallable<T> action) throws IOException {
-        ReadWriteLock lock = getLock(agentId);
+        return locked(agentId, true, () -> lockManager.lockAgent(agentId, true, WRITE_TIMEOUT_MILLIS), action);
+    }
+
+    public void writeLockedVoid(String agentId, IOVoidAction action) throws IOException {
+        writeLocked(agentId, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * scope 级锁 (scope -> 是否排他)，例如 {ws:user=true, baseline=false}。
+     */
+    public <T> T scopesLocked(String agentId, Map<String, Boolean> scopes, IOCallable<T> action) throws IOException {
+        boolean exclusive = scopes.containsValue(Boolean.TRUE);
+        long timeout = exclusive ? WRITE_TIMEOUT_MILLIS : READ_TIMEOUT_MILLIS;
+        return locked(agentId, exclusive, () -> lockManager.lockScopes(agentId, scopes, timeout), action);
+    }
+
+    public void scopesLockedVoid(String agentId, Map<String, Boolean> scopes, IOVoidAction action) throws IOException {
+        scopesLocked(agentId, scopes, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * 路径级锁：只与同一路径上的操作以及整个 scope 的排他操作互斥。
+     */
+    public <T> T pathLocked(String agentId, String scope, String path, boolean exclusive, IOCallable<T> action) throws IOException {
+        long timeout = exclusive ? WRITE_TIMEOUT_MILLIS : READ_TIMEOUT_MILLIS;
+        return locked(agentId, exclusive, () -> lockManager.lockPath(agentId, scope, path, exclusive, timeout), action);
+    }
+
+    public void pathLockedVoid(String agentId, String scope, String path, IOVoidAction action) throws IOException {
+        pathLocked(agentId, scope, path, true, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    public Map<String, Object> getLockStats() {
+        return lockManager.getStats();
+    }
+
+    private <T> T locked(String agentId, boolean write, LeaseSupplier supplier, IOCallable<T> action) throws IOException {
+        LockManager.Lease lease;
         try {
-            if (lock.writeLock().tryLock(10, java.util.concurrent.TimeUnit.SECONDS)) {
-                try {
-                    return action.call();
-                } finally {
-                    lock.writeLock().unlock();
-                }
-            } else {
-                log.warn("Write lock timeout for agent: {}", agentId);
-                throw new IOException("Server busy: Update operation timed out. Please try again.");
-            }
+            lease = supplier.acquire();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new IOException("Operation interrupted.");
         }
-    }
-
-    public void writeLockedVoid(String agentId, IOVoidAction action) throws IOException {
-        ReadWriteLock lock = getLock(agentId);
-        try {
-            if (lock.writeLock().tryLock(10, java.util.concurrent.TimeUnit.SECONDS)) {
-                try {
-                    action.run();
-                } finally {
-                    lock.writeLock().unlock();
-                }
-            } else {
+        if (lease == null) {
+            if (write) {
                 log.warn("Write lock timeout for agent: {}", agentId);
                 throw new IOException("Server busy: Update operation timed out. Please try again.");
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new IOException("Operation interrupted.");
+            log.warn("Read lock timeout for agent: {}", agentId);
+            throw new IOException("Server busy: Read operation timed out. Please try again.");
+        }
+        try (lease) {
+            return action.call();
         }
     }
 
@@ -91,27 +127,239 @@ public class StorageService {
         }
     }
 
-    public byte[] readAllBytes(Path path) throws IOException {
-        return Files.readAllBytes(path);
+    /**
+     * 由文件身份 (inode、大小、纳秒级修改时间) 生成强 ETag；variant 用于区分同一文件的不同表示 (如分页参数)。
+     */
+    public String fileETag(Path path, String variant) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        String identity = attrs.fileKey() + "|" + attrs.size() + "|" + attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                + (variant != null ? "|" + variant : "");
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(identity.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            return "\"" + HexFormat.of().formatHex(hash, 0, 16) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * If-None-Match 头是否命中给定 ETag，支持 "*"、逗号分隔的列表与弱校验前缀 W/。
+     */
+    public static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || etag == null) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String c = candidate.trim();
+            if (c.startsWith("W/")) c = c.substring(2);
+            if (c.equals("*") || c.equals(etag)) return true;
+        }
+        return false;
     }
 
-    public byte[] readAllBytesFromInputStream(java.io.InputStream is) throws IOException {
-        java.io.ByteArrayOutputStream buffer = new java.io.ByteArrayOutputStream();
-        int nRead;
-        byte[] data = new byte[16384];
-        while ((nRead = is.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
+    /**
+     * 为文件建立硬链接快照并记录其 ETag。写入路径遇到多链接文件会先断开链接，因此快照内容在关闭前保持不变。
+     * 须在路径锁内调用；不支持硬链接时回退为拷贝。
+     */
+    public FileSnapshot snapshotFile(Path source, Path tmpDir) throws IOException {
+        String etag = fileETag(source, null);
+        Path snapshot = tmpDir.resolve("snapshot-" + UUID.randomUUID());
+        try {
+            Files.createLink(snapshot, source);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(source, snapshot);
         }
-        return buffer.toByteArray();
+        return new FileSnapshot(source, snapshot, etag);
+    }
+
+    public byte[] readAllBytes(Path path) throws IOException {
+        return Files.readAllBytes(path);
     }
 
     public void writeBytes(Path path, byte[] content, OpenOption... options) throws IOException {
         if (path.getParent() != null) {
             Files.createDirectories(path.getParent());
         }
+        breakLink(path);
         Files.write(path, content, options);
     }
 
+    /**
+     * 写时复制物化目录树：目录逐级创建，文件以硬链接方式与源共享 inode。
+     * 非 POSIX 文件系统、跨设备或不支持硬链接时自动回退为普通拷贝。
+     */
+    public void linkRecursively(Path source, Path target) throws IOException {
+        if (!Files.exists(source)) return;
+        boolean linkSupported = source.getFileSystem().supportedFileAttributeViews().contains("unix");
+        Files.walkFileTree(source, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path dest = target.resolve(source.relativize(file).toString());
+                Files.deleteIfExists(dest);
+                if (linkSupported && attrs.isRegularFile()) {
+                    try {
+                        Files.createLink(dest, file);
+                        return FileVisitResult.CONTINUE;
+                    } catch (UnsupportedOperationException | FileSystemException e) {
+                        log.debug("Hard link not possible, falling back to copy: {}", file);
+                    }
+                }
+                Files.copy(file, dest, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * 断开硬链接：文件被多个目录共享时，先复制出独立副本再原子替换，保证后续修改不会波及基线或其他工作区。
+     */
+    public void breakLink(Path path) throws IOException {
+        if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) return;
+        int nlink;
+        try {
+            nlink = ((Number) Files.getAttribute(path, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).intValue();
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return;
+        }
+        if (nlink <= 1) return;
+        Path tmp = path.resolveSibling(path.getFileName() + ".cow-" + UUID.randomUUID());
+        try {
+            Files.copy(path, tmp, StandardCopyOption.COPY_ATTRIBUTES);
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * 对目录树（或单个文件）下所有仍处于共享状态的文件断开硬链接。
+     */
+    public void breakLinksRecursively(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) return;
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            breakLink(path);
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                breakLink(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * 断开目录树下的全部硬链接，返回仍处于共享状态而被断开的文件数与字节数。
+     * reflink=true 时用 cp --reflink=always 将整棵树克隆到同级临时目录再替换原目录：新文件拥有独立 inode，
+     * 数据块仍与原文件共享 (写入时才由文件系统复制)；克隆失败时回退为逐个文件复制。
+     * 调用方须保证期间没有进程在该目录中运行。
+     */
+    public LinkBreak breakLinksInTree(Path dir, boolean reflink) throws IOException {
+        if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) return new LinkBreak(0, 0, false);
+        long[] shared = {0, 0};
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile() && linkCount(file) > 1) {
+                    shared[0]++;
+                    shared[1] += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (shared[0] == 0) return new LinkBreak(0, 0, false);
+        if (reflink && cloneTree(dir)) return new LinkBreak(shared[0], shared[1], true);
+        breakLinksRecursively(dir);
+        return new LinkBreak(shared[0], shared[1], false);
+    }
+
+    /**
+     * 文件系统是否支持 reflink 克隆 (btrfs、XFS、启用块克隆的 ZFS 等)，在 dir 下实际克隆一个文件判断。
+     */
+    public boolean supportsReflink(Path dir) {
+        if (System.getProperty("os.name").toLowerCase().contains("win")) return false;
+        Path source = dir.resolve(".reflink-probe-" + UUID.randomUUID());
+        Path target = source.resolveSibling(source.getFileName() + ".clone");
+        try {
+            Files.createDirectories(dir);
+            Files.write(source, new byte[]{1});
+            return runCp(source, target, false);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                Files.deleteIfExists(source);
+                Files.deleteIfExists(target);
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private boolean cloneTree(Path dir) throws IOException {
+        Path clone = dir.resolveSibling("." + dir.getFileName() + ".clone-" + UUID.randomUUID());
+        Path old = dir.resolveSibling("." + dir.getFileName() + ".old-" + UUID.randomUUID());
+        try {
+            if (!runCp(dir, clone, true)) {
+                log.warn("Reflink clone failed, falling back to copying shared files: {}", dir);
+                return false;
+            }
+            Files.move(dir, old, StandardCopyOption.ATOMIC_MOVE);
+            try {
+                Files.move(clone, dir, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(old, dir, StandardCopyOption.ATOMIC_MOVE);
+                throw e;
+            }
+            return true;
+        } finally {
+            deleteRecursively(clone);
+            deleteRecursively(old);
+        }
+    }
+
+    /**
+     * 不保留硬链接关系 (树内内容相同的文件可能共享同一 blob)，只保留权限与时间戳。
+     */
+    private static boolean runCp(Path source, Path target, boolean recursive) throws IOException {
+        List<String> command = new ArrayList<>(List.of("cp", "--reflink=always", "--preserve=mode,timestamps", "--no-dereference"));
+        if (recursive) command.add("-R");
+        command.add(source.toString());
+        command.add(target.toString());
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        try {
+            if (!process.waitFor(10, TimeUnit.MINUTES)) {
+                process.destroyForcibly();
+                return false;
+            }
+            return process.exitValue() == 0;
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while cloning " + source, e);
+        }
+    }
+
+    private static int linkCount(Path file) throws IOException {
+        try {
+            return ((Number) Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).intValue();
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * 一次断开硬链接的结果：被断开的共享文件数、字节数，以及是否以 reflink 克隆完成 (数据块仍然共享)。
+     */
+    public record LinkBreak(long files, long bytes, boolean cloned) {
+    }
+
     public void deleteRecursively(Path path) throws IOException {
         if (Files.exists(path)) {
             FileSystemUtils.deleteRecursively(path);
@@ -119,32 +367,298 @@ public class StorageService {
     }
 
     /**
-     * 精确编辑逻辑
+     * 精确替换：在 UTF-8 字节上以 Boyer-Moore-Horspool 单遍扫描，计数与替换同时进行，结果写入同目录临时文件。
+     * 匹配次数符合预期时保留原权限并原子重命名覆盖 (同时断开与基线共享的硬链接)，否则丢弃临时文件，原文件始终完整。
+     * 内存占用只与缓冲区和 old_string 长度有关。
      */
     public void preciseEdit(Path path, String oldStr, String newStr, int expected) throws IOException {
         if (oldStr == null || oldStr.isEmpty()) {
             throw new RuntimeException("Security Error: 'old_string' cannot be empty for replacement operation.");
         }
-        
-        String content = new String(Files.readAllBytes(path), java.nio.charset.StandardCharsets.UTF_8);
-        
-        // 计算匹配次数
+        byte[] pattern = oldStr.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        byte[] replacement = newStr == null ? new byte[0] : newStr.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+
+        Path tmp = path.resolveSibling("." + path.getFileName() + ".edit-" + UUID.randomUUID());
+        try {
+            int count;
+            try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                count = replaceAll(in, out, pattern, replacement);
+                if (count == expected && count > 0) {
+                    out.force(true);
+                }
+            }
+
+            if (count != expected) {
+                throw new RuntimeException(String.format(
+                    "Edit Mismatch: '%s' found %d times, but expected %d times. Please refine your search string.",
+                    oldStr, count, expected
+                ));
+            }
+            if (count == 0) return;
+
+            try {
+                Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(path));
+            } catch (UnsupportedOperationException ignored) {
+                // 非 POSIX 文件系统
+            }
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * 流式 BMH 替换：缓冲区末尾不足一个模式长度的字节保留到下一轮，跨块的匹配不会遗漏。返回替换次数。
+     */
+    private static int replaceAll(ReadableByteChannel in, WritableByteChannel out, byte[] pattern, byte[] replacement) throws IOException {
+        int m = pattern.length;
+        int[] shift = new int[256];
+        java.util.Arrays.fill(shift, m);
+        for (int k = 0; k < m - 1; k++) {
+            shift[pattern[k] & 0xff] = m - 1 - k;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(Math.max(EDIT_BUFFER_SIZE, 2 * m));
+        byte[] a = buf.array();
+        ByteBuffer rep = ByteBuffer.wrap(replacement);
         int count = 0;
-        int index = 0;
-        while ((index = content.indexOf(oldStr, index)) != -1) {
-            count++;
-            index += oldStr.length();
+        boolean eof = false;
+        while (!eof) {
+            while (buf.hasRemaining()) {
+                if (in.read(buf) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            int len = buf.position();
+            int written = 0;
+            int i = 0;
+            while (i + m <= len) {
+                int j = m - 1;
+                while (j >= 0 && a[i + j] == pattern[j]) j--;
+                if (j < 0) {
+                    writeFully(out, ByteBuffer.wrap(a, written, i - written));
+                    writeFully(out, rep.clear());
+                    count++;
+                    i += m;
+                    written = i;
+                } else {
+                    i += shift[a[i + m - 1] & 0xff];
+                }
+            }
+            // i 之前的字节已不可能成为匹配起点
+            int keep = eof ? len : Math.min(i, len);
+            writeFully(out, ByteBuffer.wrap(a, written, Math.max(0, keep - written)));
+            int carryFrom = Math.max(written, keep);
+            System.arraycopy(a, carryFrom, a, 0, len - carryFrom);
+            buf.clear().position(len - carryFrom);
         }
+        return count;
+    }
 
-        if (count != expected) {
-            throw new RuntimeException(String.format(
-                "Edit Mismatch: '%s' found %d times, but expected %d times. Please refine your search string.",
-                oldStr, count, expected
-            ));
+    /**
+     * 批量修改：按文件首次出现的顺序处理，同一文件上的全部操作依次作用于同一份内容，只读取原文件一次、写出一个临时文件。
+     * 全部文件暂存成功后才开始逐个原子重命名替换；任一步骤失败时已替换的文件从备份链接恢复，新建的文件被删除。
+     */
+    public void applyBatch(Map<Path, List<FileChange>> changes) throws IOException {
+        Map<Path, Path> staged = new java.util.LinkedHashMap<>();
+        Map<Path, Path> backups = new java.util.LinkedHashMap<>();
+        List<Path> committed = new ArrayList<>();
+        try {
+            for (Map.Entry<Path, List<FileChange>> e : changes.entrySet()) {
+                staged.put(e.getKey(), stageChanges(e.getKey(), e.getValue()));
+            }
+
+            for (Path path : staged.keySet()) {
+                if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                    Path backup = path.resolveSibling("." + path.getFileName() + ".batch-" + UUID.randomUUID());
+                    try {
+                        Files.createLink(backup, path);
+                    } catch (UnsupportedOperationException | FileSystemException ex) {
+                        Files.copy(path, backup, StandardCopyOption.COPY_ATTRIBUTES);
+                    }
+                    backups.put(path, backup);
+                }
+            }
+            for (Map.Entry<Path, Path> e : staged.entrySet()) {
+                Files.move(e.getValue(), e.getKey(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                committed.add(e.getKey());
+            }
+        } catch (IOException | RuntimeException e) {
+            for (int i = committed.size() - 1; i >= 0; i--) {
+                Path path = committed.get(i);
+                try {
+                    Path backup = backups.remove(path);
+                    if (backup != null) {
+                        Files.move(backup, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } else {
+                        Files.deleteIfExists(path);
+                    }
+                } catch (IOException ex) {
+                    log.error("Failed to roll back batch change: {}", path, ex);
+                    e.addSuppressed(ex);
+                }
+            }
+            throw e;
+        } finally {
+            for (Path tmp : staged.values()) Files.deleteIfExists(tmp);
+            for (Path backup : backups.values()) Files.deleteIfExists(backup);
         }
+    }
 
-        String newContent = content.replace(oldStr, newStr);
-        Files.write(path, newContent.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+    /**
+     * 将一个文件上的全部操作写入同目录临时文件并返回，原文件不变。
+     */
+    private Path stageChanges(Path path, List<FileChange> ops) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        boolean exists = Files.isRegularFile(path);
+        Path tmp = path.resolveSibling("." + path.getFileName() + ".edit-" + UUID.randomUUID());
+        try {
+            if (!exists || Files.size(path) <= BATCH_IN_MEMORY_LIMIT) {
+                byte[] content = exists ? Files.readAllBytes(path) : null;
+                for (FileChange op : ops) {
+                    content = op.apply(path, content);
+                }
+                Files.write(tmp, content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } else {
+                // 大文件：每个操作流式读取上一步的结果，内存占用与 preciseEdit 相同
+                Path current = path;
+                for (FileChange op : ops) {
+                    Path next = path.resolveSibling("." + path.getFileName() + ".edit-" + UUID.randomUUID());
+                    try {
+                        op.apply(path, current, next);
+                    } catch (IOException | RuntimeException e) {
+                        Files.deleteIfExists(next);
+                        throw e;
+                    }
+                    if (current != path) Files.delete(current);
+                    current = next;
+                }
+                Files.move(current, tmp);
+            }
+            if (exists) {
+                try {
+                    Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(path));
+                } catch (UnsupportedOperationException ignored) {
+                    // 非 POSIX 文件系统
+                }
+            }
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            return tmp;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * 文件快照：关闭时删除快照链接。
+     */
+    public static final class FileSnapshot implements AutoCloseable {
+        private final Path source;
+        private final Path path;
+        private final String etag;
+
+        FileSnapshot(Path source, Path path, String etag) {
+            this.source = source;
+            this.path = path;
+            this.etag = etag;
+        }
+
+        public Path getSource() {
+            return source;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        @Override
+        public void close() throws IOException {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * 批量修改中的单个操作：写入 (content 非空) 或精确替换。index 为操作在批次中的序号，用于错误定位。
+     */
+    public static final class FileChange {
+        private final int index;
+        private final byte[] content;
+        private final String oldStr;
+        private final byte[] pattern;
+        private final byte[] replacement;
+        private final int expected;
+
+        private FileChange(int index, byte[] content, String oldStr, String newStr, int expected) {
+            this.index = index;
+            this.content = content;
+            this.oldStr = oldStr;
+            this.pattern = oldStr == null ? null : oldStr.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            this.replacement = newStr == null ? new byte[0] : newStr.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            this.expected = expected;
+        }
+
+        public static FileChange write(int index, String content) {
+            return new FileChange(index, content.getBytes(java.nio.charset.StandardCharsets.UTF_8), null, null, 0);
+        }
+
+        public static FileChange edit(int index, String oldStr, String newStr, int expected) {
+            if (oldStr == null || oldStr.isEmpty()) {
+                throw new RuntimeException("Security Error: 'old_string' cannot be empty for replacement operation (operation " + index + ").");
+            }
+            return new FileChange(index, null, oldStr, newStr, expected);
+        }
+
+        public boolean isWrite() {
+            return content != null;
+        }
+
+        byte[] apply(Path path, byte[] current) throws IOException {
+            if (isWrite()) return content;
+            if (current == null) {
+                throw new IOException("Edit Error: File not found: " + path.getFileName() + " (operation " + index + ")");
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(current.length);
+            int count = replaceAll(Channels.newChannel(new ByteArrayInputStream(current)), Channels.newChannel(out), pattern, replacement);
+            check(count);
+            return out.toByteArray();
+        }
+
+        void apply(Path path, Path source, Path target) throws IOException {
+            if (isWrite()) {
+                Files.write(target, content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                return;
+            }
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                check(replaceAll(in, out, pattern, replacement));
+            }
+        }
+
+        private void check(int count) {
+            if (count != expected) {
+                throw new RuntimeException(String.format(
+                    "Edit Mismatch: operation %d: '%s' found %d times, but expected %d times. Please refine your search string.",
+                    index, oldStr, count, expected
+                ));
+            }
+        }
     }
 
     @FunctionalInterface
@@ -156,4 +670,9 @@ public class StorageService {
     public interface IOVoidAction {
         void run() throws IOException;
     }
+
+    @FunctionalInterface
+    private interface LeaseSupplier {
+        LockManager.Lease acquire() throws InterruptedException;
+    }
 }
@@ -0,0 +1,294 @@
+package com.example.filesecbox.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * 工作区同步元数据 (技能 -> 上次同步时间、基线摘要)，取代整体重写的 .meta/skills_sync.properties。
+ * 每次提交是日志文件末尾追加的一行，行首为该行内容的 CRC32，一批更新只占一行，因此整批生效或整批不生效；
+ * 追加后 force 落盘。重放时遇到校验失败或不完整的行即停止，并截断该位置之后的内容。
+ * 已失效的记录超过阈值时写出只含当前状态的新日志并原子替换。读取走内存缓存。
+ */
+@Service
+public class SyncMetadataStore {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SyncMetadataStore.class);
+
+    public static final String LOG_FILE = "skills_sync.log";
+    private static final String LEGACY_FILE = "skills_sync.properties";
+    private static final String LEGACY_DIGEST_SUFFIX = ".digest";
+
+    // 缓存的工作区数
+    @Value("${app.sync.meta.cache-size:1024}")
+    private int cacheSize;
+
+    // 日志行数超过 (当前技能数 + compact-slack) 的两倍时压缩
+    @Value("${app.sync.meta.compact-slack:64}")
+    private int compactSlack;
+
+    private Map<Path, Store> stores;
+
+    @PostConstruct
+    public void init() {
+        this.stores = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Store> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    /**
+     * 当前同步状态的只读快照 (技能名 -> 状态)。
+     */
+    public Map<String, SyncState> load(Path metaDir) throws IOException {
+        Store store = open(metaDir);
+        synchronized (store) {
+            return Collections.unmodifiableMap(new HashMap<>(store.states));
+        }
+    }
+
+    /**
+     * 提交一批更新：技能名 -> 基线摘要，null 表示清除该技能的记录。同步时间统一记为当前时间。
+     */
+    public void commit(Path metaDir, Map<String, String> digests) throws IOException {
+        if (digests.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        StringBuilder payload = new StringBuilder();
+        for (Map.Entry<String, String> e : digests.entrySet()) {
+            if (payload.length() > 0) payload.append('\t');
+            String skill = encode(e.getKey());
+            if (e.getValue() != null) {
+                payload.append("P:").append(skill).append(':').append(now).append(':').append(e.getValue());
+            } else {
+                payload.append("R:").append(skill);
+            }
+        }
+        Store store = open(metaDir);
+        synchronized (store) {
+            Path logFile = metaDir.resolve(LOG_FILE);
+            ByteBuffer record = line(payload.toString());
+            Files.createDirectories(metaDir);
+            try (FileChannel channel = FileChannel.open(logFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                // 日志长度与缓存不一致 (缓存淘汰后被另一实例写入或外部修改)，先按日志重建
+                if (channel.size() != store.bytes) replay(logFile, store);
+                store.bytes += writeFully(channel, record);
+                channel.force(false);
+            } catch (IOException e) {
+                // 追加结果不确定，丢弃缓存，下次读取按日志重放
+                stores.remove(metaDir, store);
+                throw e;
+            }
+            apply(store.states, payload.toString());
+            store.lines++;
+            if (store.lines > 2L * (store.states.size() + compactSlack)) {
+                compact(metaDir, store);
+            }
+        }
+    }
+
+    /**
+     * 工作区被删除后丢弃缓存。
+     */
+    public void forget(Path metaDir) {
+        stores.remove(metaDir);
+    }
+
+    /**
+     * 全局表只负责取得工作区的 Store，重放、迁移与截断在该 Store 自身的锁内完成，不阻塞其他工作区。
+     */
+    private Store open(Path metaDir) throws IOException {
+        Store store = stores.computeIfAbsent(metaDir, k -> new Store());
+        synchronized (store) {
+            if (!store.loaded) {
+                try {
+                    Path logFile = metaDir.resolve(LOG_FILE);
+                    store.states.clear();
+                    if (Files.exists(logFile)) {
+                        replay(logFile, store);
+                    } else if (Files.exists(metaDir.resolve(LEGACY_FILE))) {
+                        migrate(metaDir, store);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    stores.remove(metaDir, store);
+                    throw e;
+                }
+                store.loaded = true;
+            }
+        }
+        return store;
+    }
+
+    private void replay(Path logFile, Store store) throws IOException {
+        store.states.clear();
+        store.lines = 0;
+        byte[] bytes = Files.readAllBytes(logFile);
+        int valid = 0;
+        for (int start = 0; start < bytes.length; ) {
+            int end = start;
+            while (end < bytes.length && bytes[end] != '\n') end++;
+            if (end == bytes.length) break; // 末尾不完整的行
+            String payload = verify(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+            if (payload == null) break;
+            apply(store.states, payload);
+            store.lines++;
+            start = end + 1;
+            valid = start;
+        }
+        if (valid < bytes.length) {
+            log.warn("Truncating torn sync metadata log {} at byte {} (size {})", logFile, valid, bytes.length);
+            try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+                channel.force(true);
+            }
+        }
+        store.bytes = valid;
+    }
+
+    /**
+     * 从旧的 skills_sync.properties 导入：键为技能名的 Base64，值为同步时间，键 + ".digest" 为基线摘要。
+     */
+    private void migrate(Path metaDir, Store store) throws IOException {
+        Path legacy = metaDir.resolve(LEGACY_FILE);
+        Properties props = new Properties();
+        try (InputStream is = Files.newInputStream(legacy)) {
+            props.load(is);
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignoring corrupt legacy sync metadata: {}", legacy, e);
+        }
+        for (String key : props.stringPropertyNames()) {
+            if (key.endsWith(LEGACY_DIGEST_SUFFIX)) continue;
+            String skill;
+            try {
+                skill = new String(Base64.getDecoder().decode(key), StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            long time;
+            try {
+                time = Long.parseLong(props.getProperty(key).trim());
+            } catch (NumberFormatException e) {
+                time = 0;
+            }
+            store.states.put(skill, new SyncState(time, props.getProperty(key + LEGACY_DIGEST_SUFFIX)));
+        }
+        compact(metaDir, store);
+        Files.deleteIfExists(legacy);
+        log.info("Migrated {} skills from {} to {}", store.states.size(), legacy, LOG_FILE);
+    }
+
+    /**
+     * 写出只含当前状态的日志 (单行，原子生效) 并替换旧日志。
+     */
+    private void compact(Path metaDir, Store store) throws IOException {
+        StringBuilder payload = new StringBuilder();
+        for (Map.Entry<String, SyncState> e : store.states.entrySet()) {
+            if (payload.length() > 0) payload.append('\t');
+            payload.append("P:").append(encode(e.getKey())).append(':').append(e.getValue().getSyncTime())
+                    .append(':').append(e.getValue().getDigest() != null ? e.getValue().getDigest() : "");
+        }
+        Files.createDirectories(metaDir);
+        Path tmp = metaDir.resolve(LOG_FILE + ".tmp-" + UUID.randomUUID());
+        long written = 0;
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                if (payload.length() > 0) written = writeFully(channel, line(payload.toString()));
+                channel.force(true);
+            }
+            Files.move(tmp, metaDir.resolve(LOG_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        store.lines = payload.length() > 0 ? 1 : 0;
+        store.bytes = written;
+    }
+
+    private static void apply(Map<String, SyncState> states, String payload) {
+        if (payload.isEmpty()) return;
+        for (String record : payload.split("\t")) {
+            String[] parts = record.split(":", 4);
+            String skill = decode(parts[1]);
+            if ("R".equals(parts[0])) {
+                states.remove(skill);
+            } else {
+                String digest = parts.length > 3 && !parts[3].isEmpty() ? parts[3] : null;
+                states.put(skill, new SyncState(Long.parseLong(parts[2]), digest));
+            }
+        }
+    }
+
+    private static ByteBuffer line(String payload) {
+        return ByteBuffer.wrap((crc(payload) + " " + payload + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 校验一行日志，返回其内容；行不完整或 CRC 不符时返回 null。
+     */
+    private static String verify(String text) {
+        int space = text.indexOf(' ');
+        if (space != 8) return null;
+        String payload = text.substring(space + 1);
+        return text.substring(0, space).equals(crc(payload)) ? payload : null;
+    }
+
+    private static String crc(String payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload.getBytes(StandardCharsets.UTF_8));
+        return String.format("%08x", crc.getValue());
+    }
+
+    private static String encode(String skill) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(skill.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String encoded) {
+        return new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        return written;
+    }
+
+    private static final class Store {
+        private final Map<String, SyncState> states = new HashMap<>();
+        // 由 open 在 Store 的锁内首次加载后置位
+        private boolean loaded;
+        private long lines;
+        private long bytes;
+    }
+
+    /**
+     * 单个技能的同步状态：同步时间 (毫秒) 与当时的基线摘要；旧数据可能没有摘要。
+     */
+    public static final class SyncState {
+        private final long syncTime;
+        private final String digest;
+
+        SyncState(long syncTime, String digest) {
+            this.syncTime = syncTime;
+            this.digest = digest;
+        }
+
+        public long getSyncTime() {
+            return syncTime;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.filesecbox.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * 工作区最近访问时间索引：每次 API 访问工作区时更新内存中的访问时间，定期持久化，
+ * 并按 (访问时间 + agent 的 TTL) 维护一个到期队列。访问只更新时间，不调整队列；
+ * 出队时若发现期间有过访问，按新的到期时间重新入队，因此每个工作区在队列中只有一个条目。
+ */
+@Service
+public class WorkspaceAccessTracker {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(WorkspaceAccessTracker.class);
+
+    @Value("${app.workspace.ttl-hours:24}")
+    private long defaultTtlHours;
+
+    // 按 agent 覆盖 TTL，格式 agentId:hours，逗号分隔
+    @Value("${app.workspace.ttl-overrides:}")
+    private String ttlOverrides;
+
+    private final Map<String, Long> agentTtlMillis = new HashMap<>();
+    private final ConcurrentHashMap<WorkspaceKey, Long> lastAccess = new ConcurrentHashMap<>();
+    private final PriorityQueue<Expiry> expiries = new PriorityQueue<>(Comparator.comparingLong(Expiry::expiresAt));
+    private volatile Path indexFile;
+    private volatile boolean dirty;
+    // 时间来源 (毫秒)
+    private LongSupplier clock = System::currentTimeMillis;
+
+    @PostConstruct
+    public void init() {
+        for (String item : ttlOverrides.split(",")) {
+            int colon = item.lastIndexOf(':');
+            if (colon <= 0) continue;
+            try {
+                agentTtlMillis.put(item.substring(0, colon).trim(), (long) (Double.parseDouble(item.substring(colon + 1).trim()) * 3_600_000));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring invalid workspace TTL override: {}", item);
+            }
+        }
+    }
+
+    /**
+     * 载入持久化的索引。文件不存在时索引为空，由 seed 补充磁盘上已有的工作区。
+     */
+    public void load(Path file) throws IOException {
+        this.indexFile = file;
+        if (!Files.exists(file)) return;
+        Properties props = new Properties();
+        try (InputStream is = Files.newInputStream(file)) {
+            props.load(is);
+        }
+        for (String key : props.stringPropertyNames()) {
+            WorkspaceKey workspace = WorkspaceKey.decode(key);
+            if (workspace == null) continue;
+            try {
+                seed(workspace.agentId(), workspace.userId(), Long.parseLong(props.getProperty(key)));
+            } catch (NumberFormatException ignored) {}
+        }
+        log.info("Loaded {} workspace access records from {}", lastAccess.size(), file);
+    }
+
+    /**
+     * 记录一次访问。
+     */
+    public void touch(String agentId, String userId) {
+        WorkspaceKey key = new WorkspaceKey(agentId, userId);
+        long now = clock.getAsLong();
+        Long previous = lastAccess.put(key, now);
+        dirty = true;
+        if (previous == null) enqueue(key, now);
+    }
+
+    /**
+     * 登记已存在但索引中没有的工作区 (不覆盖已有记录)。
+     */
+    public void seed(String agentId, String userId, long accessTime) {
+        WorkspaceKey key = new WorkspaceKey(agentId, userId);
+        if (lastAccess.putIfAbsent(key, accessTime) == null) {
+            dirty = true;
+            enqueue(key, accessTime);
+        }
+    }
+
+    /**
+     * 取出最多 limit 个已到期的工作区及其被判定到期时的访问时间。
+     */
+    public List<Expired> pollExpired(int limit) {
+        long now = clock.getAsLong();
+        List<Expired> result = new ArrayList<>();
+        synchronized (expiries) {
+            while (result.size() < limit && !expiries.isEmpty() && expiries.peek().expiresAt() <= now) {
+                WorkspaceKey key = expiries.poll().key();
+                Long accessed = lastAccess.get(key);
+                if (accessed == null) continue;
+                long expiresAt = accessed + ttlMillis(key.agentId());
+                if (expiresAt > now) {
+                    expiries.add(new Expiry(expiresAt, key));
+                } else {
+                    result.add(new Expired(key.agentId(), key.userId(), accessed));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 判定到期之后是否又有访问。
+     */
+    public boolean isStillExpired(Expired expired) {
+        Long accessed = lastAccess.get(new WorkspaceKey(expired.agentId(), expired.userId()));
+        return accessed != null && accessed == expired.accessTime();
+    }
+
+    /**
+     * 工作区已删除：仅当期间没有新的访问时移除记录，否则按新的访问时间重新入队。
+     */
+    public void remove(Expired expired) {
+        WorkspaceKey key = new WorkspaceKey(expired.agentId(), expired.userId());
+        if (lastAccess.remove(key, expired.accessTime())) {
+            dirty = true;
+        } else {
+            requeue(expired);
+        }
+    }
+
+    /**
+     * 未删除 (期间被访问或删除失败)，重新放回到期队列。
+     */
+    public void requeue(Expired expired) {
+        WorkspaceKey key = new WorkspaceKey(expired.agentId(), expired.userId());
+        Long accessed = lastAccess.get(key);
+        if (accessed != null) enqueue(key, accessed);
+    }
+
+    public long ttlMillis(String agentId) {
+        return agentTtlMillis.getOrDefault(agentId, defaultTtlHours * 3_600_000);
+    }
+
+    @Scheduled(fixedDelayString = "${app.workspace.access.flush-interval-ms:60000}")
+    public void flush() {
+        Path file = indexFile;
+        if (file == null || !dirty) return;
+        dirty = false;
+        Properties props = new Properties();
+        lastAccess.forEach((key, time) -> props.setProperty(key.encode(), String.valueOf(time)));
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp-" + UUID.randomUUID());
+            try {
+                try (OutputStream os = Files.newOutputStream(tmp)) {
+                    props.store(os, "Workspace Last Access");
+                }
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            dirty = true;
+            log.error("Failed to persist workspace access index: {}", file, e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    private void enqueue(WorkspaceKey key, long accessTime) {
+        synchronized (expiries) {
+            expiries.add(new Expiry(accessTime + ttlMillis(key.agentId()), key));
+        }
+    }
+
+    private record Expiry(long expiresAt, WorkspaceKey key) {
+    }
+
+    /**
+     * 到期的工作区及判定时的访问时间。
+     */
+    public record Expired(String agentId, String userId, long accessTime) {
+    }
+
+    private record WorkspaceKey(String agentId, String userId) {
+        String encode() {
+            Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+            return encoder.encodeToString(agentId.getBytes(StandardCharsets.UTF_8)) + "."
+                    + encoder.encodeToString(userId.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static WorkspaceKey decode(String encoded) {
+            int dot = encoded.indexOf('.');
+            if (dot < 0) return null;
+            try {
+                Base64.Decoder decoder = Base64.getUrlDecoder();
+                return new WorkspaceKey(new String(decoder.decode(encoded.substring(0, dot)), StandardCharsets.UTF_8),
+                        new String(decoder.decode(encoded.substring(dot + 1)), StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+# -*- coding: utf-8 -*-
+"""
+预热的 python 执行进程 (zygote)。
+
+启动后预先导入常用模块，然后从标准输入逐行读取 JSON 请求：
+    {"argv": ["skills/x/run.py", "arg1"], "cwd": "...", "stdout": "...", "stderr": "..."}
+每个请求 fork 出独立的子进程执行，子进程切换工作目录、把 stdout/stderr 重定向到指定文件后以 __main__ 身份运行脚本，
+因此脚本之间不共享任何解释器状态。父进程在标准输出上依次回复：
+    {"pid": <子进程 pid>}
+    {"exit": <退出码>, "rss": <本进程常驻内存 KB>}
+退出码与 bash 一致：被信号终止时为 128 + 信号值。
+"""
+import json
+import os
+import runpy
+import sys
+import traceback
+
+# 常用标准库预先导入，fork 出的子进程直接继承
+import argparse  # noqa: F401
+import collections  # noqa: F401
+import csv  # noqa: F401
+import datetime  # noqa: F401
+import io
+import pathlib  # noqa: F401
+import re  # noqa: F401
+import shutil  # noqa: F401
+import subprocess  # noqa: F401
+import time  # noqa: F401
+
+
+def preload(modules):
+    for name in modules:
+        name = name.strip()
+        if not name:
+            continue
+        try:
+            __import__(name)
+        except Exception as e:  # 预加载失败不影响执行
+            sys.stderr.write("preload %s failed: %s\n" % (name, e))
+
+
+def rss_kb():
+    try:
+        with open("/proc/self/statm") as f:
+            return int(f.read().split()[1]) * (os.sysconf("SC_PAGE_SIZE") // 1024)
+    except (OSError, ValueError):
+        import resource
+        return resource.getrusage(resource.RUSAGE_SELF).ru_maxrss
+
+
+def exit_code(status):
+    if os.WIFSIGNALED(status):
+        return 128 + os.WTERMSIG(status)
+    return os.WEXITSTATUS(status)
+
+
+def run_child(request, protocol_fd):
+    code = 1
+    try:
+        os.close(protocol_fd)
+        os.setsid()
+        os.chdir(request["cwd"])
+        null = os.open(os.devnull, os.O_RDONLY)
+        os.dup2(null, 0)
+        for fd, path in ((1, request["stdout"]), (2, request["stderr"])):
+            target = os.open(path, os.O_WRONLY | os.O_CREAT | os.O_TRUNC, 0o644)
+            os.dup2(target, fd)
+            os.close(target)
+        sys.stdout = io.TextIOWrapper(os.fdopen(1, "wb", closefd=False), encoding="utf-8", errors="replace")
+        sys.stderr = io.TextIOWrapper(os.fdopen(2, "wb", closefd=False), encoding="utf-8", errors="replace",
+                                      line_buffering=True)
+        script = request["argv"][0]
+        sys.argv = list(request["argv"])
+        sys.path[0] = os.path.dirname(os.path.abspath(script))
+        runpy.run_path(script, run_name="__main__")
+        code = 0
+    except SystemExit as e:
+        if e.code is None:
+            code = 0
+        elif isinstance(e.code, int):
+            code = e.code & 0xFF
+        else:
+            sys.stderr.write("%s\n" % e.code)
+            code = 1
+    except BaseException:
+        traceback.print_exc()
+        code = 1
+    finally:
+        try:
+            sys.stdout.flush()
+            sys.stderr.flush()
+        finally:
+            os._exit(code)
+
+
+def main():
+    preload(sys.argv[1].split(",") if len(sys.argv) > 1 else [])
+    # runpy 首次调用会惰性初始化导入机制 (约十余毫秒)，在 zygote 中预先完成，避免每个子进程重复
+    runpy.run_path(os.devnull, run_name="__warmup__")
+    # 协议通道使用独立的文件描述符，子进程重定向 1/2 不会影响它
+    protocol_fd = os.dup(1)
+    protocol = os.fdopen(protocol_fd, "w", encoding="utf-8")
+    stdin = io.TextIOWrapper(sys.stdin.buffer, encoding="utf-8")
+    for line in stdin:
+        line = line.strip()
+        if not line:
+            continue
+        request = json.loads(line)
+        pid = os.fork()
+        if pid == 0:
+            run_child(request, protocol_fd)
+        protocol.write(json.dumps({"pid": pid}) + "\n")
+        protocol.flush()
+        _, status = os.waitpid(pid, 0)
+        protocol.write(json.dumps({"exit": exit_code(status), "rss": rss_kb()}) + "\n")
+        protocol.flush()
+
+
+if __name__ == "__main__":
+    main()
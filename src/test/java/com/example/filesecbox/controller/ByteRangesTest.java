@@ -0,0 +1,49 @@
+package com.example.filesecbox.controller;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ByteRangesTest {
+
+    private static final String ETAG = "\"v1\"";
+
+    @Test
+    void parsesSingleRanges() {
+        assertArrayEquals(new long[]{0, 9}, ByteRanges.parse("bytes=0-9", 100));
+        assertArrayEquals(new long[]{90, 99}, ByteRanges.parse("bytes=90-", 100));
+        assertArrayEquals(new long[]{80, 99}, ByteRanges.parse("bytes=-20", 100));
+        assertArrayEquals(new long[]{0, 99}, ByteRanges.parse("bytes=-500", 100));
+        assertArrayEquals(new long[]{50, 99}, ByteRanges.parse("bytes=50-1000", 100));
+    }
+
+    @Test
+    void ignoresUnsupportedRanges() {
+        assertNull(ByteRanges.parse("items=0-9", 100));
+        assertNull(ByteRanges.parse("bytes=0-9,20-29", 100));
+        assertNull(ByteRanges.parse("bytes=9-0", 100));
+        assertNull(ByteRanges.parse("bytes=abc", 100));
+        assertNull(ByteRanges.parse("bytes=a-b", 100));
+    }
+
+    @Test
+    void reportsUnsatisfiableRanges() {
+        assertEquals(0, ByteRanges.parse("bytes=100-", 100).length);
+        assertEquals(0, ByteRanges.parse("bytes=-0", 100).length);
+        assertEquals(0, ByteRanges.parse("bytes=-5", 0).length);
+    }
+
+    @Test
+    void honoursRangeWhenIfRangeMatchesOrIsAbsent() {
+        assertArrayEquals(new long[]{2, 5}, ByteRanges.resolve("bytes=2-5", ETAG, ETAG, 10));
+        assertArrayEquals(new long[]{2, 5}, ByteRanges.resolve("bytes=2-5", null, ETAG, 10));
+        assertEquals(0, ByteRanges.resolve("bytes=20-", null, ETAG, 10).length);
+    }
+
+    @Test
+    void servesFullContentWithoutRangeOrWhenIfRangeIsStale() {
+        assertNull(ByteRanges.resolve(null, null, ETAG, 10));
+        assertNull(ByteRanges.resolve("bytes=2-5", "\"v0\"", ETAG, 10));
+        assertNull(ByteRanges.resolve("bytes=20-", "\"v0\"", ETAG, 10));
+    }
+}
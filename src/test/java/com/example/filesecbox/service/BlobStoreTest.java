@@ -0,0 +1,85 @@
+package com.example.filesecbox.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlobStoreTest {
+
+    @TempDir
+    Path productRoot;
+
+    private BlobStore blobStore;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        blobStore = new BlobStore();
+        ReflectionTestUtils.setField(blobStore, "productRootLinux", productRoot.toString());
+        ReflectionTestUtils.setField(blobStore, "productRootWin", productRoot.toString());
+        blobStore.init();
+    }
+
+    private String ingestExpired(String content) throws IOException {
+        Path file = Files.writeString(productRoot.resolve("src.txt"), content);
+        String key = blobStore.ingest(file, true);
+        Files.setLastModifiedTime(blobStore.blobPath(key), FileTime.fromMillis(0));
+        return key;
+    }
+
+    @Test
+    void unreferencedBlobIsCollected() throws IOException {
+        String key = ingestExpired("orphan");
+
+        blobStore.collectGarbage();
+
+        assertFalse(Files.exists(blobStore.blobPath(key)));
+    }
+
+    @Test
+    void recentlyReusedBlobSurvivesCollectionBeforeItIsLinked() throws IOException {
+        String key = ingestExpired("shared");
+        // 再次 ingest 命中已有 blob，随后的 linkTo 尚未发生
+        assertEquals(key, blobStore.ingest(Files.writeString(productRoot.resolve("again.txt"), "shared"), false));
+
+        blobStore.collectGarbage();
+
+        Path target = productRoot.resolve("ws.txt");
+        blobStore.linkTo(key, target);
+        assertEquals("shared", Files.readString(target));
+    }
+
+    @Test
+    void sameContentWithDifferentModesDoesNotShareAnInode() throws IOException {
+        Path skill = Files.createDirectories(productRoot.resolve("skill"));
+        Path script = Files.writeString(skill.resolve("run.sh"), "echo hi");
+        Path data = Files.writeString(skill.resolve("data.txt"), "echo hi");
+        Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rwxr-xr-x"));
+        Files.setPosixFilePermissions(data, PosixFilePermissions.fromString("rw-r--r--"));
+
+        Map<String, String> manifest = blobStore.snapshot(skill, Collections.emptyMap(), true);
+
+        assertNotEquals(manifest.get("run.sh"), manifest.get("data.txt"));
+        assertNotEquals(fileKey(script), fileKey(data));
+        Path workspace = productRoot.resolve("ws");
+        blobStore.checkout(workspace, Collections.emptyMap(), manifest);
+        assertEquals("rwxr-xr-x", PosixFilePermissions.toString(Files.getPosixFilePermissions(workspace.resolve("run.sh"))));
+        assertEquals("rw-r--r--", PosixFilePermissions.toString(Files.getPosixFilePermissions(workspace.resolve("data.txt"))));
+        assertEquals(fileKey(script), fileKey(workspace.resolve("run.sh")));
+    }
+
+    private static Object fileKey(Path file) throws IOException {
+        return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+    }
+}
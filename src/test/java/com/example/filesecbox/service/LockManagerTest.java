@@ -0,0 +1,114 @@
+package com.example.filesecbox.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LockManagerTest {
+
+    private static final long SHORT = 50;
+    private static final String AGENT = "agent";
+
+    private final LockManager lockManager = new LockManager();
+
+    @Test
+    void workspacesOfDifferentUsersDoNotBlockEachOther() throws Exception {
+        try (LockManager.Lease a = lockManager.lockScopes(AGENT, Map.of(LockManager.workspaceScope("u1"), true), SHORT);
+             LockManager.Lease b = lockManager.lockScopes(AGENT, Map.of(LockManager.workspaceScope("u2"), true), SHORT)) {
+            assertNotNull(a);
+            assertNotNull(b);
+            assertNull(lockManager.lockScopes(AGENT, Map.of(LockManager.workspaceScope("u1"), false), SHORT));
+        }
+    }
+
+    @Test
+    void sharedScopeLocksAreCompatibleButExcludeWriters() throws Exception {
+        Map<String, Boolean> shared = Map.of(LockManager.BASELINE_SCOPE, false);
+        try (LockManager.Lease a = lockManager.lockScopes(AGENT, shared, SHORT);
+             LockManager.Lease b = lockManager.lockScopes(AGENT, shared, SHORT)) {
+            assertNotNull(a);
+            assertNotNull(b);
+            assertNull(lockManager.lockScopes(AGENT, Map.of(LockManager.BASELINE_SCOPE, true), SHORT));
+        }
+        try (LockManager.Lease x = lockManager.lockScopes(AGENT, Map.of(LockManager.BASELINE_SCOPE, true), SHORT)) {
+            assertNotNull(x);
+        }
+    }
+
+    @Test
+    void agentExclusiveConflictsWithIntentionLocks() throws Exception {
+        try (LockManager.Lease scope = lockManager.lockScopes(AGENT, Map.of(LockManager.workspaceScope("u1"), false), SHORT)) {
+            assertNotNull(scope);
+            // IS 与 agent 级 S 兼容，与 X 冲突
+            try (LockManager.Lease s = lockManager.lockAgent(AGENT, false, SHORT)) {
+                assertNotNull(s);
+            }
+            assertNull(lockManager.lockAgent(AGENT, true, SHORT));
+        }
+        try (LockManager.Lease scope = lockManager.lockScopes(AGENT, Map.of(LockManager.workspaceScope("u1"), true), SHORT)) {
+            assertNotNull(scope);
+            // IX 与 agent 级 S 冲突
+            assertNull(lockManager.lockAgent(AGENT, false, SHORT));
+        }
+        try (LockManager.Lease x = lockManager.lockAgent(AGENT, true, SHORT)) {
+            assertNotNull(x);
+            assertNull(lockManager.lockPath(AGENT, LockManager.workspaceScope("u1"), "files/a.txt", false, SHORT));
+            try (LockManager.Lease other = lockManager.lockAgent("other", true, SHORT)) {
+                assertNotNull(other);
+            }
+        }
+    }
+
+    @Test
+    void queuedWriterBlocksLaterReaders() throws Exception {
+        Map<String, Boolean> shared = Map.of(LockManager.BASELINE_SCOPE, false);
+        LockManager.Lease reader = lockManager.lockScopes(AGENT, shared, SHORT);
+        assertNotNull(reader);
+        CompletableFuture<LockManager.Lease> writer = CompletableFuture.supplyAsync(() -> {
+            try {
+                return lockManager.lockScopes(AGENT, Map.of(LockManager.BASELINE_SCOPE, true), 5000);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waitForContention();
+
+        // 排在写者之后的读者不能插队
+        assertNull(lockManager.lockScopes(AGENT, shared, SHORT));
+        reader.close();
+        try (LockManager.Lease x = writer.get(5, TimeUnit.SECONDS)) {
+            assertNotNull(x);
+        }
+    }
+
+    @Test
+    void lockTableShrinksWhenLeasesAreReleased() throws Exception {
+        try (LockManager.Lease lease = lockManager.lockPath(AGENT, LockManager.workspaceScope("u1"), "files/a.txt", true, SHORT)) {
+            assertNotNull(lease);
+            assertEquals(1, table().get("agentEntries"));
+            assertEquals(1, table().get("scopeEntries"));
+        }
+        assertEquals(0, table().get("agentEntries"));
+        assertEquals(0, table().get("scopeEntries"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> table() {
+        return (Map<String, Object>) lockManager.getStats().get("table");
+    }
+
+    @SuppressWarnings("unchecked")
+    private void waitForContention() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            Map<String, Object> scope = (Map<String, Object>) lockManager.getStats().get("scope");
+            if ((Long) scope.get("contended") > 0) return;
+            Thread.sleep(5);
+        }
+        fail("Writer did not queue");
+    }
+}
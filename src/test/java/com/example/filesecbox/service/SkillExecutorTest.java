@@ -0,0 +1,77 @@
+package com.example.filesecbox.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SkillExecutorTest {
+
+    @TempDir
+    Path productRoot;
+
+    private SkillExecutor newExecutor() {
+        SkillExecutor executor = new SkillExecutor();
+        ReflectionTestUtils.setField(executor, "productRootLinux", productRoot.toString());
+        ReflectionTestUtils.setField(executor, "productRootWin", productRoot.toString());
+        ReflectionTestUtils.setField(executor, "validationCacheSize", 16);
+        executor.init();
+        return executor;
+    }
+
+    private Path workspace() throws IOException {
+        return Files.createDirectories(productRoot.resolve("agent").resolve("workspaces").resolve("u1"));
+    }
+
+    @Test
+    void cachedAcceptanceCreatesSameDirectoriesAsUncachedRun() throws IOException {
+        Path ws = workspace();
+        String command = "python3 files/out/run.py --count 2 skills/demo/data";
+
+        newExecutor().prepare(ws, command);
+        assertTrue(Files.isDirectory(ws.resolve("files/out")));
+        assertTrue(Files.isDirectory(ws.resolve("skills/demo/data")));
+
+        FileSystemUtils.deleteRecursively(ws.resolve("files"));
+        FileSystemUtils.deleteRecursively(ws.resolve("skills"));
+        SkillExecutor cached = newExecutor();
+        // 只有普通参数与空白不同，命中同一条缓存结论
+        cached.prepare(ws, "python3   files/out/run.py --count 7   skills/demo/data");
+        FileSystemUtils.deleteRecursively(ws.resolve("files"));
+        FileSystemUtils.deleteRecursively(ws.resolve("skills"));
+        cached.prepare(ws, command);
+
+        assertTrue(Files.isDirectory(ws.resolve("files/out")));
+        assertTrue(Files.isDirectory(ws.resolve("skills/demo/data")));
+    }
+
+    @Test
+    void cachedRejectionRepeatsUncachedMessage() throws IOException {
+        Path ws = workspace();
+        String command = "cat /etc/passwd first";
+        String uncached = assertThrows(RuntimeException.class, () -> newExecutor().prepare(ws, command)).getMessage();
+
+        SkillExecutor cached = newExecutor();
+        assertThrows(RuntimeException.class, () -> cached.prepare(ws, "cat  /etc/passwd second"));
+        assertEquals(uncached, assertThrows(RuntimeException.class, () -> cached.prepare(ws, command)).getMessage());
+        assertTrue(uncached.startsWith("Security Error"));
+    }
+
+    @Test
+    void pathArgumentsAreNotShared() throws IOException {
+        Path ws = workspace();
+        SkillExecutor executor = newExecutor();
+        executor.prepare(ws, "cat files/a.txt");
+
+        assertThrows(RuntimeException.class, () -> executor.prepare(ws, "cat /etc/a.txt"));
+        assertThrows(RuntimeException.class, () -> executor.prepare(ws, "cat files/../a.txt"));
+        assertThrows(RuntimeException.class, () -> executor.prepare(ws, "cat files/x/SKILL.md"));
+        assertThrows(RuntimeException.class, () -> executor.prepare(ws, "cat " + productRoot.resolve("other/a.txt")));
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.filesecbox.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StorageServiceTest {
+
+    @TempDir
+    Path dir;
+
+    private final StorageService storageService = new StorageService();
+
+    @Test
+    void replacesEveryOccurrenceAcrossBufferBoundaries() throws IOException {
+        String needle = "needle-跨块-needle";
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(42);
+        int occurrences = 0;
+        // 超过编辑缓冲区数倍，匹配随机分布，部分落在缓冲区边界上
+        while (text.length() < 1_000_000) {
+            text.append((char) ('a' + random.nextInt(26)));
+            if (random.nextInt(500) == 0) {
+                text.append(needle);
+                occurrences++;
+            }
+        }
+        Path file = dir.resolve("big.txt");
+        Files.writeString(file, text);
+
+        storageService.preciseEdit(file, needle, "X", occurrences);
+
+        assertEquals(text.toString().replace(needle, "X"), Files.readString(file));
+    }
+
+    @Test
+    void handlesOverlappingCandidatesAndDeletion() throws IOException {
+        Path file = dir.resolve("small.txt");
+        Files.writeString(file, "aaaa-aab-aaab");
+
+        storageService.preciseEdit(file, "aab", "", 2);
+
+        assertEquals("aaaa--a", Files.readString(file));
+    }
+
+    @Test
+    void leavesFileUntouchedOnCountMismatch() throws IOException {
+        Path file = dir.resolve("keep.txt");
+        Files.writeString(file, "one two one");
+        Path other = dir.resolve("link.txt");
+        Files.createLink(other, file);
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> storageService.preciseEdit(file, "one", "1", 1));
+        assertTrue(e.getMessage().startsWith("Edit Mismatch"));
+        assertEquals("one two one", Files.readString(file));
+        try (var entries = Files.list(dir)) {
+            assertEquals(2, entries.count());
+        }
+    }
+
+    @Test
+    void breaksHardLinkWhenReplacing() throws IOException {
+        Path file = dir.resolve("ws.txt");
+        Files.write(file, "shared content".getBytes(StandardCharsets.UTF_8));
+        Path baseline = dir.resolve("baseline.txt");
+        Files.createLink(baseline, file);
+
+        storageService.preciseEdit(file, "shared", "private", 1);
+
+        assertEquals("private content", Files.readString(file));
+        assertEquals("shared content", Files.readString(baseline));
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.filesecbox.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SyncMetadataStoreTest {
+
+    @TempDir
+    Path metaDir;
+
+    private static SyncMetadataStore newStore() {
+        SyncMetadataStore store = new SyncMetadataStore();
+        ReflectionTestUtils.setField(store, "cacheSize", 16);
+        ReflectionTestUtils.setField(store, "compactSlack", 64);
+        store.init();
+        return store;
+    }
+
+    @Test
+    void replaysCommittedBatchesInOrder() throws IOException {
+        SyncMetadataStore store = newStore();
+        Map<String, String> first = new LinkedHashMap<>();
+        first.put("alpha", "d1");
+        first.put("技能 beta", "d2");
+        store.commit(metaDir, first);
+        Map<String, String> second = new HashMap<>();
+        second.put("alpha", null);
+        second.put("gamma", "d3");
+        store.commit(metaDir, second);
+
+        Map<String, SyncMetadataStore.SyncState> states = newStore().load(metaDir);
+        assertEquals(2, states.size());
+        assertFalse(states.containsKey("alpha"));
+        assertEquals("d2", states.get("技能 beta").getDigest());
+        assertEquals("d3", states.get("gamma").getDigest());
+        assertTrue(states.get("gamma").getSyncTime() > 0);
+    }
+
+    @Test
+    void truncatesTornTailAndKeepsAppending() throws IOException {
+        SyncMetadataStore store = newStore();
+        store.commit(metaDir, Map.of("alpha", "d1"));
+        Path logFile = metaDir.resolve(SyncMetadataStore.LOG_FILE);
+        long validSize = Files.size(logFile);
+
+        // 崩溃时只写了一半的行
+        Files.write(logFile, "0badc0de P:YmV0YQ:1:d2".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        SyncMetadataStore reopened = newStore();
+        Map<String, SyncMetadataStore.SyncState> states = reopened.load(metaDir);
+        assertEquals(Map.of("alpha", "d1"), digests(states));
+        assertEquals(validSize, Files.size(logFile));
+
+        reopened.commit(metaDir, Map.of("gamma", "d3"));
+        assertEquals(Map.of("alpha", "d1", "gamma", "d3"), digests(newStore().load(metaDir)));
+    }
+
+    @Test
+    void stopsReplayAtLineWithBadChecksum() throws IOException {
+        SyncMetadataStore store = newStore();
+        store.commit(metaDir, Map.of("alpha", "d1"));
+        Path logFile = metaDir.resolve(SyncMetadataStore.LOG_FILE);
+        long validSize = Files.size(logFile);
+        store.commit(metaDir, Map.of("beta", "d2"));
+
+        // 破坏第二行的内容，CRC 不再匹配
+        byte[] bytes = Files.readAllBytes(logFile);
+        bytes[bytes.length - 2] ^= 1;
+        Files.write(logFile, bytes);
+
+        assertEquals(Map.of("alpha", "d1"), digests(newStore().load(metaDir)));
+        assertEquals(validSize, Files.size(logFile));
+    }
+
+    private static Map<String, String> digests(Map<String, SyncMetadataStore.SyncState> states) {
+        Map<String, String> result = new HashMap<>();
+        states.forEach((skill, state) -> result.put(skill, state.getDigest()));
+        return result;
+    }
+}
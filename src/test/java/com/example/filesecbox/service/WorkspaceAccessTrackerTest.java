@@ -0,0 +1,89 @@
+package com.example.filesecbox.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WorkspaceAccessTrackerTest {
+
+    private static final long HOUR = 3_600_000L;
+
+    private final AtomicLong now = new AtomicLong(100 * HOUR);
+
+    private WorkspaceAccessTracker newTracker(String overrides) {
+        WorkspaceAccessTracker tracker = new WorkspaceAccessTracker();
+        ReflectionTestUtils.setField(tracker, "defaultTtlHours", 24L);
+        ReflectionTestUtils.setField(tracker, "ttlOverrides", overrides);
+        ReflectionTestUtils.setField(tracker, "clock", (LongSupplier) now::get);
+        tracker.init();
+        return tracker;
+    }
+
+    @Test
+    void accessBeforeExpiryRequeuesWithNewDeadline() {
+        WorkspaceAccessTracker tracker = newTracker("short:1");
+        tracker.touch("short", "u1");
+        now.addAndGet(HOUR / 2);
+        tracker.touch("short", "u1");
+        now.addAndGet(HOUR / 2 + 1);
+
+        // 首次到期时间已过，但期间有过访问：重新入队而不是返回
+        assertTrue(tracker.pollExpired(10).isEmpty());
+
+        now.addAndGet(HOUR / 2);
+        List<WorkspaceAccessTracker.Expired> expired = tracker.pollExpired(10);
+        assertEquals(1, expired.size());
+        assertEquals("u1", expired.get(0).userId());
+        assertTrue(tracker.isStillExpired(expired.get(0)));
+    }
+
+    @Test
+    void requeuedWorkspaceExpiresAgain() {
+        WorkspaceAccessTracker tracker = newTracker("zero:0");
+        tracker.touch("zero", "u1");
+        List<WorkspaceAccessTracker.Expired> expired = tracker.pollExpired(10);
+        assertEquals(1, expired.size());
+        assertTrue(tracker.pollExpired(10).isEmpty());
+
+        // 删除失败：放回队列后下次仍会取出
+        tracker.requeue(expired.get(0));
+        assertEquals(expired, tracker.pollExpired(10));
+    }
+
+    @Test
+    void removeKeepsWorkspaceAccessedAfterExpiry() {
+        WorkspaceAccessTracker tracker = newTracker("zero:0");
+        tracker.touch("zero", "u1");
+        WorkspaceAccessTracker.Expired expired = tracker.pollExpired(10).get(0);
+        now.incrementAndGet();
+        tracker.touch("zero", "u1");
+
+        assertFalse(tracker.isStillExpired(expired));
+        tracker.remove(expired);
+        List<WorkspaceAccessTracker.Expired> again = tracker.pollExpired(10);
+        assertEquals(1, again.size());
+        assertTrue(again.get(0).accessTime() > expired.accessTime());
+
+        tracker.remove(again.get(0));
+        tracker.requeue(again.get(0));
+        assertTrue(tracker.pollExpired(10).isEmpty());
+    }
+
+    @Test
+    void seedDoesNotOverrideRecordedAccess() {
+        WorkspaceAccessTracker tracker = newTracker("");
+        tracker.touch("agent", "u1");
+        tracker.seed("agent", "u1", 0);
+        tracker.seed("agent", "u2", 0);
+
+        List<WorkspaceAccessTracker.Expired> expired = tracker.pollExpired(10);
+        assertEquals(1, expired.size());
+        assertEquals("u2", expired.get(0).userId());
+        assertEquals(24L * HOUR, tracker.ttlMillis("agent"));
+    }
+}